@@ -0,0 +1,78 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.benchmarks;
+
+import com.sshtools.liftlib.ElevatedClosure;
+import com.sshtools.liftlib.Elevator.Call;
+
+/**
+ * Closures used by the benchmarks. These are plain serializable classes rather
+ * than lambdas, so the measured cost is that of a typical user closure.
+ */
+public final class Closures {
+
+	private Closures() {
+	}
+
+	@SuppressWarnings("serial")
+	public final static class Noop implements Call<Boolean> {
+		@Override
+		public Boolean call() throws Exception {
+			return Boolean.TRUE;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public final static class Echo implements Call<byte[]> {
+		private final byte[] payload;
+
+		public Echo(byte[] payload) {
+			this.payload = payload;
+		}
+
+		@Override
+		public byte[] call() throws Exception {
+			return payload;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public final static class Emit implements ElevatedClosure<Integer, Integer> {
+		private final int count;
+		private transient int received;
+
+		public Emit(int count) {
+			this.count = count;
+		}
+
+		@Override
+		public Integer call(ElevatedClosure<Integer, Integer> proxy) throws Exception {
+			for (int i = 0; i < count; i++) {
+				proxy.event(i);
+			}
+			return count;
+		}
+
+		@Override
+		public void event(Integer event) {
+			received++;
+		}
+
+		public int received() {
+			return received;
+		}
+	}
+}
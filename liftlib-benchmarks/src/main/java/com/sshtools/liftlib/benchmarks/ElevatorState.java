@@ -0,0 +1,58 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sshtools.liftlib.Elevator;
+import com.sshtools.liftlib.Elevator.ReauthorizationPolicy;
+
+/**
+ * An {@link Elevator} with a single long lived helper, shared by all threads of
+ * a benchmark. The helper is started without elevation (see
+ * <code>liftlib.unelevated</code>) so no password or administrator account is
+ * needed, and before measurement starts so startup time is excluded. Each
+ * benchmark is run once for each transport.
+ */
+@State(Scope.Benchmark)
+public class ElevatorState {
+
+	@Param({ "com.sshtools.liftlib.impl.UDSRPC", "com.sshtools.liftlib.impl.TCPRPC", "com.sshtools.liftlib.impl.SHMRPC" })
+	public String rpc;
+
+	public Elevator elevator;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		System.setProperty("liftlib.unelevated", "true");
+		System.setProperty("liftlib.rpc", rpc);
+		elevator = new Elevator.ElevatorBuilder().
+				withReauthorizationPolicy(ReauthorizationPolicy.NEVER).
+				withDevMode(false).
+				build();
+		elevator.call(new Closures.Noop());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		elevator.close();
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib;
+
+import java.util.Optional;
+
+/**
+ * The outcome of a single closure run as part of a batch, see
+ * {@link IElevator#batch(java.util.List, IElevator.BatchMode)}.
+ */
+public final class BatchResult {
+
+	public enum Status {
+		/**
+		 * The closure completed and returned a result (which may be
+		 * <code>null</code>).
+		 */
+		OK,
+		/**
+		 * The closure threw an exception.
+		 */
+		FAILED,
+		/**
+		 * The closure was never run because an earlier closure in a
+		 * {@link IElevator.BatchMode#FAIL_FAST} batch failed, or the helper went away.
+		 */
+		SKIPPED
+	}
+
+	private final static BatchResult SKIPPED = new BatchResult(Status.SKIPPED, null, null);
+
+	public static BatchResult ok(Object result) {
+		return new BatchResult(Status.OK, result, null);
+	}
+
+	public static BatchResult failed(Throwable error) {
+		return new BatchResult(Status.FAILED, null, error);
+	}
+
+	public static BatchResult skipped() {
+		return SKIPPED;
+	}
+
+	private final Status status;
+	private final Object result;
+	private final Throwable error;
+
+	private BatchResult(Status status, Object result, Throwable error) {
+		this.status = status;
+		this.result = result;
+		this.error = error;
+	}
+
+	public Status status() {
+		return status;
+	}
+
+	public boolean isOk() {
+		return status == Status.OK;
+	}
+
+	public Optional<Throwable> error() {
+		return Optional.ofNullable(error);
+	}
+
+	/**
+	 * Get the result of the closure, or throw whatever exception it threw.
+	 *
+	 * @param <S> type of result
+	 * @return result
+	 * @throws Exception any exception thrown by the closure
+	 * @throws IllegalStateException if the closure was skipped
+	 */
+	@SuppressWarnings("unchecked")
+	public <S> S get() throws Exception {
+		switch (status) {
+		case OK:
+			return (S) result;
+		case FAILED:
+			if (error instanceof Exception)
+				throw (Exception) error;
+			else
+				throw new Exception(error);
+		default:
+			throw new IllegalStateException("Closure was skipped.");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult [status=" + status + ", result=" + result + ", error=" + error + "]";
+	}
+}
@@ -31,6 +31,12 @@ public class BootRuntimePathProvider implements RuntimePathProvider {
 		}
 
 		addSysPropIfExists(systemProperties, "file.encoding");
+		addSysPropIfExists(systemProperties, "liftlib.eventBatchSize");
+		addSysPropIfExists(systemProperties, "liftlib.eventBatchDelay");
+		addSysPropIfExists(systemProperties, "liftlib.maxFrameSize");
+		addSysPropIfExists(systemProperties, "liftlib.helperThreads");
+		addSysPropIfExists(systemProperties, "liftlib.virtualThreads");
+		addSysPropIfExists(systemProperties, "liftlib.maxProcesses");
 		if (!OS.isWindows()) {
 			/*
 			 * TODO passing on this on Windows prevents execution as there is some issue
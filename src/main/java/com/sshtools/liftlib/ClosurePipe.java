@@ -0,0 +1,47 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib;
+
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A closure that is running, and reading input written to it by this JVM, see
+ * {@link IElevator#pipe(ElevatedClosure)}. The closure reads the input from
+ * {@link ElevatedClosure#input()} on the proxy it is given.
+ *
+ * @param <S> return type
+ */
+public interface ClosurePipe<S extends Serializable> {
+
+	/**
+	 * Stream to write input to the closure. Writes block once the closure has
+	 * fallen behind by more than a limited amount. Closing this stream signals
+	 * end of input to the closure. Writing after the closure has completed
+	 * fails with an {@link java.io.IOException}.
+	 *
+	 * @return input
+	 */
+	OutputStream input();
+
+	/**
+	 * The value returned by the closure.
+	 *
+	 * @return future result
+	 */
+	CompletableFuture<S> result();
+}
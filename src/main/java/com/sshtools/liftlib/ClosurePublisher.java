@@ -0,0 +1,46 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib;
+
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Runs a closure when subscribed to, and publishes its events with
+ * back-pressure. Events are only sent from the helper as the subscriber
+ * requests them, and a closure that emits events faster than they are
+ * requested blocks in {@link ElevatedClosure#event(Serializable)} until more
+ * are requested. Only a single subscriber is supported.
+ * <p>
+ * Events are passed to the subscriber rather than to the closure's own
+ * {@link ElevatedClosure#event(Serializable)} method. The subscriber is
+ * completed when the closure returns and every event has been delivered, and
+ * the value it returned is available from {@link #result()}.
+ *
+ * @param <S> return type
+ * @param <E> event type
+ */
+public interface ClosurePublisher<S extends Serializable, E extends Serializable> extends Flow.Publisher<E> {
+
+	/**
+	 * The value returned by the closure. Completes as soon as the closure returns,
+	 * which may be before the subscriber has received every event.
+	 *
+	 * @return future result
+	 */
+	CompletableFuture<S> result();
+}
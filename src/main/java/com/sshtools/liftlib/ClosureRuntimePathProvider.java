@@ -0,0 +1,169 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib;
+
+import java.lang.module.ResolvedModule;
+import java.lang.reflect.Modifier;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides the helper with only those parts of the class path and module path
+ * that are needed to run a known set of closures, rather than everything the
+ * application was launched with as {@link BootRuntimePathProvider} does. The
+ * helper of a large application then has far fewer JARs to open, so starts
+ * faster and uses less memory.
+ * <p>
+ * The class path or module path entries included are those containing LiftLib,
+ * each closure class, and the super classes, interfaces and (non-transient)
+ * field types of each. For modular applications, every module required by
+ * those modules is included too. Anything else a closure uses, for example a
+ * class only referred to in its <code>call()</code> method, or its {@link Codec},
+ * must be added as an extra class.
+ */
+public class ClosureRuntimePathProvider implements RuntimePathProvider {
+	final static Logger LOG = Logger.getLogger(ClosureRuntimePathProvider.class.getSimpleName());
+
+	private final Set<Class<?>> classes;
+
+	public ClosureRuntimePathProvider(Class<?>... classes) {
+		this(Arrays.asList(classes));
+	}
+
+	public ClosureRuntimePathProvider(Collection<Class<?>> classes) {
+		this.classes = new LinkedHashSet<>(classes);
+	}
+
+	@Override
+	public void fill(Set<String> legacyClassPath, Set<String> modulePath, Properties systemProperties) {
+		var cp = new LinkedHashSet<String>();
+		var mp = new LinkedHashSet<String>();
+		BootRuntimePathProvider.getDefault().fill(cp, mp, systemProperties);
+
+		var needed = new LinkedHashSet<Path>();
+		var seen = new HashSet<Object>();
+		locate(Helper.class, needed, seen);
+		for (var clazz : classes)
+			locate(clazz, needed, seen);
+
+		/* Keep the order, and whether each is on the class path or module path */
+		var found = new HashSet<Path>();
+		for (var el : mp) {
+			var path = normalize(el);
+			if (needed.contains(path)) {
+				modulePath.add(el);
+				found.add(path);
+			}
+		}
+		for (var el : cp) {
+			var path = normalize(el);
+			if (needed.contains(path) && found.add(path))
+				legacyClassPath.add(el);
+		}
+		/* Anything loaded from elsewhere, e.g. by a custom class loader */
+		for (var path : needed) {
+			if (!found.contains(path))
+				legacyClassPath.add(path.toString());
+		}
+
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine("Reduced helper class path to " + legacyClassPath + " and module path to " + modulePath + " from "
+					+ cp.size() + " and " + mp.size() + " entries");
+	}
+
+	private void locate(Class<?> clazz, Set<Path> needed, Set<Object> seen) {
+		while (clazz.isArray())
+			clazz = clazz.getComponentType();
+		if (clazz.isPrimitive() || !seen.add(clazz))
+			return;
+
+		var module = clazz.getModule();
+		if (module.isNamed()) {
+			/* The JDK is always available to the helper, and walking it is expensive */
+			if (isSystem(module))
+				return;
+			locate(module.getName(), module.getLayer(), needed, seen);
+		} else {
+			location(clazz).ifPresent(needed::add);
+		}
+
+		try {
+			if (clazz.getSuperclass() != null)
+				locate(clazz.getSuperclass(), needed, seen);
+			for (var iface : clazz.getInterfaces())
+				locate(iface, needed, seen);
+			for (var field : clazz.getDeclaredFields()) {
+				var mods = field.getModifiers();
+				if (!Modifier.isStatic(mods) && !Modifier.isTransient(mods))
+					locate(field.getType(), needed, seen);
+			}
+		} catch (LinkageError e) {
+			/* E.g. a field whose type is from an optional dependency that is not present */
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "Could not inspect all of " + clazz.getName() + ", the helper may be missing some classes it needs.", e);
+		}
+	}
+
+	private static boolean isSystem(Module module) {
+		var layer = module.getLayer();
+		if (layer == null)
+			return false;
+		return layer.configuration().findModule(module.getName())
+				.flatMap(resolved -> resolved.reference().location())
+				.map(uri -> "jrt".equals(uri.getScheme()))
+				.orElse(false);
+	}
+
+	private void locate(String moduleName, ModuleLayer layer, Set<Path> needed, Set<Object> seen) {
+		if (layer == null || !seen.add(moduleName))
+			return;
+		layer.configuration().findModule(moduleName).ifPresent(resolved -> {
+			location(resolved).ifPresent(needed::add);
+			for (var dep : resolved.reads())
+				locate(dep.name(), layer, needed, seen);
+		});
+	}
+
+	private static Optional<Path> location(ResolvedModule module) {
+		return module.reference().location().filter(uri -> "file".equals(uri.getScheme())).map(Paths::get).map(Path::normalize);
+	}
+
+	private static Optional<Path> location(Class<?> clazz) {
+		var domain = clazz.getProtectionDomain();
+		var source = domain == null ? null : domain.getCodeSource();
+		if (source == null || source.getLocation() == null)
+			return Optional.empty();
+		try {
+			var uri = source.getLocation().toURI();
+			return "file".equals(uri.getScheme()) ? Optional.of(Paths.get(uri).toAbsolutePath().normalize()) : Optional.empty();
+		} catch (Exception e) {
+			return Optional.empty();
+		}
+	}
+
+	private static Path normalize(String el) {
+		return Paths.get(el).toAbsolutePath().normalize();
+	}
+}
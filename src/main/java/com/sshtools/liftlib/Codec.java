@@ -0,0 +1,104 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.sshtools.liftlib.impl.Codecs;
+
+/**
+ * Encodes and decodes a single type of object sent between an
+ * {@link Elevator} and its helper, typically an {@link ElevatedClosure}, its
+ * result or its events. Any object without a codec is sent using standard Java
+ * serialization, which is considerably more expensive.
+ * <p>
+ * Codecs are discovered using {@link java.util.ServiceLoader}, so must be
+ * registered in <code>module-info.java</code> or
+ * <code>META-INF/services/com.sshtools.liftlib.Codec</code>. The same codecs
+ * must be available to both the elevated and non-elevated JVMs, which is
+ * normally the case as they share a class path.
+ *
+ * @param <T> type of object
+ */
+public interface Codec<T> {
+
+	/**
+	 * Unique identifier of this codec, used on the wire. Identifiers below 1000
+	 * are reserved for LiftLib itself.
+	 *
+	 * @return identifier
+	 */
+	int id();
+
+	/**
+	 * The exact type this codec handles. Sub-classes are not matched.
+	 *
+	 * @return type
+	 */
+	Class<T> type();
+
+	void encode(T value, DataOutput out) throws IOException;
+
+	T decode(DataInput in) throws IOException;
+
+	/**
+	 * Write a possibly <code>null</code> string of any length.
+	 *
+	 * @param out output
+	 * @param value value
+	 * @throws IOException on error
+	 */
+	static void writeString(DataOutput out, String value) throws IOException {
+		Codecs.writeString(out, value);
+	}
+
+	/**
+	 * Read a possibly <code>null</code> string written by
+	 * {@link #writeString(DataOutput, String)}.
+	 *
+	 * @param in input
+	 * @return value
+	 * @throws IOException on error
+	 */
+	static String readString(DataInput in) throws IOException {
+		return Codecs.readString(in);
+	}
+
+	/**
+	 * Write any object, using its codec if there is one, or Java serialization
+	 * if not. Useful for nested values of arbitrary type.
+	 *
+	 * @param out output
+	 * @param value value
+	 * @throws IOException on error
+	 */
+	static void writeValue(DataOutput out, Object value) throws IOException {
+		Codecs.get().write(out, value);
+	}
+
+	/**
+	 * Read any object written by {@link #writeValue(DataOutput, Object)}.
+	 *
+	 * @param in input
+	 * @return value
+	 * @throws IOException on error
+	 */
+	static Object readValue(DataInput in) throws IOException {
+		return Codecs.get().read(in);
+	}
+}
@@ -15,16 +15,45 @@
  */
 package com.sshtools.liftlib;
 
+import java.io.InputStream;
 import java.io.Serializable;
+import java.util.List;
 
 @FunctionalInterface
 public interface ElevatedClosure<S extends Serializable, E extends Serializable> extends Serializable {
 
     default void event(E event) {
     }
+
+    /**
+     * Receive a batch of events. The helper buffers events emitted in quick
+     * succession and sends them together, and they are delivered here. By
+     * default each is simply passed to {@link #event(Serializable)} in order,
+     * but closures that emit large numbers of events may override this to
+     * handle the whole batch more efficiently.
+     * 
+     * @param events events
+     */
+    default void events(List<E> events) {
+        for (var event : events) {
+            event(event);
+        }
+    }
     
     S call(ElevatedClosure<S, E> proxy) throws Exception;
 
+    /**
+     * Input written to this closure by the caller, when it was started with
+     * {@link IElevator#pipe(ElevatedClosure)}. Only the proxy passed to
+     * {@link #call(ElevatedClosure)} provides input, anywhere else (or for a
+     * closure not started as a pipe) this is an empty stream.
+     *
+     * @return input
+     */
+    default InputStream input() {
+        return InputStream.nullInputStream();
+    }
+
     default S call() throws Exception {
         return call(this);
     }
@@ -17,30 +17,45 @@ package com.sshtools.liftlib;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.MessageFormat;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.sshtools.liftlib.impl.ElevatedClosurePublisher;
+import com.sshtools.liftlib.impl.ElevatedConnection;
 import com.sshtools.liftlib.impl.ElevatedJVM;
+import com.sshtools.liftlib.impl.HelperDaemon;
 import com.sshtools.liftlib.impl.PlatformElevation;
+import com.sshtools.liftlib.impl.Spans;
 
 public final class Elevator implements IElevator {
 
 	private final static Logger LOG = Logger.getLogger(Elevator.class.getSimpleName());
+
+	/* Admission by a daemon needs no authorization, so should never take long */
+	private final static Duration DAEMON_ADMIT_TIMEOUT = Duration.ofSeconds(30);
 	
 	public final static class DefaultElevator {
 		private static Elevator DEFAULT;
@@ -74,6 +89,14 @@ public final class Elevator implements IElevator {
 		return DefaultElevator.DEFAULT;
 	}
 
+	private final static class DefaultExecutor {
+		private final static Executor EXECUTOR = Executors.newCachedThreadPool(r -> {
+			var t = new Thread(r, "ElevatorAsync");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
 	public enum ReauthorizationPolicy {
 		EVERY_TIME, NEVER, INTERVAL;
 	}
@@ -112,12 +135,144 @@ public final class Elevator implements IElevator {
 		private Optional<Boolean> devMode = Optional.empty();
 		private Optional<Supplier<RPC>> rpc = Optional.empty();
 		private List<RuntimePathProvider> pathProviders = new ArrayList<>();
+		private List<ElevatorListener> listeners = new ArrayList<>();
 		private boolean forceClassPath = Boolean.getBoolean("liftlib.forceClassPath");
+		private Optional<Executor> executor = Optional.empty();
+		private int poolSize;
+		private boolean daemon = Boolean.getBoolean("liftlib.useDaemon");
+		private Optional<Path> daemonPath = Optional.empty();
+		private Duration daemonIdleTimeout = Duration.ofMinutes(5);
+		private int daemonMaxClients = 16;
+		private Duration connectTimeout = Duration.ofSeconds(Long.getLong("liftlib.connectTimeout", 0));
 
 		public Elevator build() {
 			return new Elevator(this);
 		}
 		
+		/**
+		 * Keep this many helpers started, authorized and idle, ready to be handed a
+		 * closure immediately. The pool is filled in the background as soon as the
+		 * elevator is built, and topped up each time a helper is taken from it. Idle
+		 * helpers are evicted once older than the reauthorization interval when the
+		 * {@link ReauthorizationPolicy#INTERVAL} policy is in use. Note that each
+		 * helper started requires its own authorization. With the
+		 * {@link ReauthorizationPolicy#NEVER} policy a single helper is used for the
+		 * life of the elevator, so no pool is kept.
+		 * 
+		 * @param poolSize number of idle helpers to keep, or zero to start helpers only on demand
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withPoolSize(int poolSize) {
+			if(poolSize < 0)
+				throw new IllegalArgumentException("Pool size must be zero or more.");
+			this.poolSize = poolSize;
+			return this;
+		}
+		
+		/**
+		 * How long to wait for a new helper to connect, including the time taken
+		 * for the user to authorize it. If the helper has not connected by then,
+		 * the attempt is abandoned. By default, or when zero, there is no timeout.
+		 * Whatever the timeout, failure is detected as soon as the helper (or the
+		 * elevation tool that starts it) exits.
+		 * <p>
+		 * This is also how long to wait to be admitted by a daemon helper, see
+		 * {@link #withDaemon(boolean)}. As no authorization is needed for that, when
+		 * zero a default of 30 seconds is used instead.
+		 * 
+		 * @param connectTimeout connect timeout
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withConnectTimeout(Duration connectTimeout) {
+			if(connectTimeout.isNegative())
+				throw new IllegalArgumentException("Timeout may not be negative.");
+			this.connectTimeout = connectTimeout;
+			return this;
+		}
+		
+		/**
+		 * Use a shared daemon helper. Rather than starting a helper of its own, the
+		 * elevator attaches to a daemon helper already running for this user, which
+		 * may have been started by another process. If there is none, a helper is
+		 * started and authorized as normal, but it also listens for other elevators,
+		 * and stays running after this elevator is closed until it has had no clients
+		 * for the idle timeout.
+		 * <p>
+		 * The daemon only accepts connections from the user that started it, and
+		 * elevators only attach to a daemon running as the elevated user, both
+		 * verified using the peer credentials of the Unix domain socket. Note that
+		 * the daemon remains authorized for as long as it runs, whatever the
+		 * {@link ReauthorizationPolicy}. Not supported on Windows or in native images.
+		 * 
+		 * @param daemon use a daemon
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withDaemon(boolean daemon) {
+			this.daemon = daemon;
+			return this;
+		}
+		
+		/**
+		 * Use a shared daemon helper. See {@link #withDaemon(boolean)}.
+		 * 
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withDaemon() {
+			return withDaemon(true);
+		}
+		
+		/**
+		 * Set the path of the daemon's socket. By default, this is a file in the
+		 * temporary directory named after the current user.
+		 * 
+		 * @param daemonPath daemon socket path
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withDaemonPath(Path daemonPath) {
+			this.daemonPath = Optional.of(daemonPath);
+			return this;
+		}
+		
+		/**
+		 * How long a daemon started by this elevator keeps running once it has no
+		 * clients.
+		 * 
+		 * @param daemonIdleTimeout idle timeout
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withDaemonIdleTimeout(Duration daemonIdleTimeout) {
+			this.daemonIdleTimeout = daemonIdleTimeout;
+			return this;
+		}
+		
+		/**
+		 * The maximum number of elevators a daemon started by this elevator will
+		 * serve at once. Further elevators are refused, and start a helper of their own.
+		 * 
+		 * @param daemonMaxClients maximum clients
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withDaemonMaxClients(int daemonMaxClients) {
+			if(daemonMaxClients < 1)
+				throw new IllegalArgumentException("Maximum clients must be at least one.");
+			this.daemonMaxClients = daemonMaxClients;
+			return this;
+		}
+		
+		/**
+		 * Set the executor used to deliver events and results for closures run via
+		 * one of the asynchronous methods, and to start new helpers when an
+		 * asynchronous closure needs one. When not set, a shared pool of daemon
+		 * threads is used.
+		 * 
+		 * @param executor executor
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withExecutor(Executor executor) {
+			this.executor = Optional.of(executor);
+			return this;
+		}
+		
 		public ElevatorBuilder withForceClassPath(boolean forceClassPath) {
 			this.forceClassPath = forceClassPath;
 			return this;
@@ -137,6 +292,31 @@ public final class Elevator implements IElevator {
 			return this;
 		}
 		
+		/**
+		 * Only give helpers the parts of the class path and module path that are needed
+		 * to run the given closure classes, rather than everything this application was
+		 * started with. See {@link ClosureRuntimePathProvider} for exactly what is
+		 * included.
+		 * 
+		 * @param classes closure classes, and any other classes they need
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withClosureClasses(Class<?>... classes) {
+			return withRuntimePathProviders(new ClosureRuntimePathProvider(classes));
+		}
+		
+		/**
+		 * Add a listener that is told how long each phase of starting a helper, and of
+		 * running each closure, took. See {@link ElevatorListener.Phase}.
+		 * 
+		 * @param listener listener
+		 * @return this for chaining
+		 */
+		public ElevatorBuilder withListener(ElevatorListener listener) {
+			this.listeners.add(listener);
+			return this;
+		}
+		
 		public ElevatorBuilder withDevMode(boolean devMode) {
 			this.devMode = Optional.of(devMode);
 			return this;
@@ -200,13 +380,23 @@ public final class Elevator implements IElevator {
 	private final Optional<char[]> password;
 	private final Optional<Boolean> devMode;
 	private final List<RuntimePathProvider> pathProviders;
+	private final Spans spans;
 	private final Optional<Supplier<RPC>> rpc;
 	private final boolean forceClassPath;
+	private final Executor executor;
+	private final int poolSize;
+	private final boolean daemon;
+	private final Path daemonPath;
+	private final Duration daemonIdleTimeout;
+	private final int daemonMaxClients;
+	private final Duration connectTimeout;
 	
-	private ElevatedJVM jvm;
-	private long lastAuth;
-	private ObjectOutputStream out;
-	private ObjectInputStream in;
+	private final List<ElevatedConnection> connections = new ArrayList<>();
+	private final Deque<ElevatedConnection> idle = new ArrayDeque<>();
+
+	private ElevatedConnection current;
+	private int warming;
+	private boolean closed;
 
 	Elevator(ElevatorBuilder builder) {
 		this.failOnCancel = builder.failOnCancel;
@@ -215,9 +405,23 @@ public final class Elevator implements IElevator {
 		this.username = builder.username;
 		this.password = builder.password;
 		this.devMode = builder.devMode;
+		this.spans = new Spans(Collections.unmodifiableList(new ArrayList<>(builder.listeners)));
 		this.pathProviders = Collections.unmodifiableList(builder.pathProviders.isEmpty() ? Arrays.asList(BootRuntimePathProvider.getDefault()) : builder.pathProviders);
 		this.rpc = builder.rpc;
 		this.forceClassPath = builder.forceClassPath;
+		this.executor = builder.executor.orElseGet(() -> DefaultExecutor.EXECUTOR);
+		this.poolSize = builder.poolSize;
+		this.daemon = builder.daemon && !OS.isWindows() && !OS.isNativeImage();
+		this.daemonPath = builder.daemonPath.orElseGet(() -> Paths.get(System.getProperty("java.io.tmpdir"), "liftlib-" + System.getProperty("user.name") + ".daemon"));
+		this.daemonIdleTimeout = builder.daemonIdleTimeout;
+		this.daemonMaxClients = builder.daemonMaxClients;
+		this.connectTimeout = builder.connectTimeout;
+		
+		if(poolSize > 0) {
+			synchronized(lock) {
+				warm();
+			}
+		}
 	}
 	
 	public void run(Run closure) throws Exception {
@@ -249,132 +453,320 @@ public final class Elevator implements IElevator {
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
 	public <S extends Serializable, E extends Serializable> S closure(ElevatedClosure<S, E> closure) throws Exception {
-		synchronized (lock) {
-			if (jvm != null && lastAuth > 0 && reauthorizationPolicy == ReauthorizationPolicy.INTERVAL
-					&& System.currentTimeMillis() > lastAuth + reauthorizationInterval.toMillis()) {
-				if(LOG.isLoggable(Level.FINE))
-					LOG.fine("Elevator JVM timed-out");
-				closeJvm();
+		ElevatedConnection connection = null;
+		try {
+			connection = connection(true);
+			return connection.closure(closure);
+		} catch (EOFException e) {
+			if (failOnCancel)
+				throw e;
+			else
+				return null;
+		} finally {
+			if (connection != null)
+				connection.release();
+		}
+	}
+
+	@Override
+	public List<BatchResult> batch(List<? extends ElevatedClosure<?, ?>> closures, BatchMode mode) throws Exception {
+		if (closures.isEmpty())
+			return Collections.emptyList();
+		ElevatedConnection connection = null;
+		try {
+			connection = connection(true);
+			return connection.batch(closures, mode);
+		} catch (EOFException e) {
+			if (failOnCancel)
+				throw e;
+			else
+				return Collections.nCopies(closures.size(), BatchResult.skipped());
+		} finally {
+			if (connection != null)
+				connection.release();
+		}
+	}
+
+	@Override
+	public <S extends Serializable, E extends Serializable> CompletableFuture<S> closureAsync(ElevatedClosure<S, E> closure) {
+		ElevatedConnection connection;
+		try {
+			connection = connection(false);
+		} catch (IOException ioe) {
+			return CompletableFuture.failedFuture(ioe);
+		}
+		/* The future sent to the helper, which cancellation of the returned future is passed on to */
+		var sent = new AtomicReference<CompletableFuture<S>>();
+		var cancelled = new AtomicBoolean();
+		CompletableFuture<S> future;
+		Runnable unlease;
+		if (connection == null) {
+			/* Starting a helper blocks, possibly for a long time while the user is prompted */
+			var leased = CompletableFuture.supplyAsync(() -> {
+				try {
+					return connection(true);
+				} catch (IOException ioe) {
+					throw new CompletionException(ioe);
+				}
+			}, executor);
+			/*
+			 * If cancelled before the helper is ready, the closure is never sent, so
+			 * whichever of the two notices first must release the connection
+			 */
+			var claimed = new AtomicBoolean();
+			unlease = () -> {
+				if (cancelled.get() && leased.isDone() && !leased.isCompletedExceptionally() && claimed.compareAndSet(false, true)) {
+					try {
+						leased.join().release();
+					} catch (IOException ioe) {
+						LOG.log(Level.WARNING, "Failed to release elevated connection.", ioe);
+					}
+				}
+			};
+			leased.whenComplete((c, t) -> unlease.run());
+			future = leased.thenCompose(c -> {
+				if (!claimed.compareAndSet(false, true))
+					return CompletableFuture.failedFuture(new CancellationException());
+				var s = closureAsync(c, closure);
+				sent.set(s);
+				if (cancelled.get())
+					s.cancel(true);
+				return s;
+			});
+		} else {
+			sent.set(closureAsync(connection, closure));
+			future = sent.get();
+			unlease = () -> {
+			};
+		}
+		var result = future.exceptionally(t -> {
+			var cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+			if (cause instanceof EOFException && !failOnCancel)
+				return null;
+			throw t instanceof CompletionException ? (CompletionException) t : new CompletionException(t);
+		});
+		result.whenComplete((r, t) -> {
+			if (result.isCancelled()) {
+				cancelled.set(true);
+				future.cancel(true);
+				var s = sent.get();
+				if (s != null)
+					s.cancel(true);
+				unlease.run();
 			}
+		});
+		return result;
+	}
+
+	@Override
+	public <S extends Serializable, E extends Serializable> ClosurePublisher<S, E> publisher(ElevatedClosure<S, E> closure) {
+		return new ElevatedClosurePublisher<>(closure, executor, () -> connection(true));
+	}
+
+	@Override
+	public <S extends Serializable, E extends Serializable> ClosurePipe<S> pipe(ElevatedClosure<S, E> closure) throws IOException {
+		var connection = connection(true);
+		ClosurePipe<S> pipe;
+		try {
+			pipe = connection.pipe(closure, executor);
+		} catch (Exception e) {
+			connection.release();
+			if (e instanceof IOException)
+				throw (IOException) e;
+			else if (e instanceof RuntimeException)
+				throw (RuntimeException) e;
+			else
+				throw new IOException("Failed to start closure.", e);
+		}
+		pipe.result().whenComplete((r, t) -> {
 			try {
-				if (jvm == null || !jvm.isActive()) {
+				connection.release();
+			} catch (IOException ioe) {
+				LOG.log(Level.WARNING, "Failed to release elevated connection.", ioe);
+			}
+		});
+		return pipe;
+	}
+
+	private <S extends Serializable, E extends Serializable> CompletableFuture<S> closureAsync(ElevatedConnection connection, ElevatedClosure<S, E> closure) {
+		var future = connection.closureAsync(closure, executor);
+		future.whenComplete((r, t) -> {
+			try {
+				connection.release();
+			} catch (IOException ioe) {
+				LOG.log(Level.WARNING, "Failed to release elevated connection.", ioe);
+			}
+		});
+		return future;
+	}
+
+	private ElevatedConnection connection(boolean create) throws IOException {
+		synchronized (lock) {
+			while (true) {
+				connections.removeIf(ElevatedConnection::isClosed);
+				if (current != null && isExpired(current)) {
 					if(LOG.isLoggable(Level.FINE))
-						LOG.fine("Creating new elevator JVM");
-					jvm = new ElevatedJVM(PlatformElevation.forEnvironment(username, password), devMode.orElseGet(() -> Files.exists(Paths.get("pom.xml"))), pathProviders, rpc.orElse(() -> RPC.get()), forceClassPath);
-					out = new ObjectOutputStream(jvm.getOutputStream());
+						LOG.fine("Elevator JVM timed-out");
+					retire(current);
 				}
-				if(LOG.isLoggable(Level.FINE))
-					LOG.fine("Sending closure");
-				out.writeObject(closure);				
-				out.flush();
-				if(LOG.isLoggable(Level.FINE))
-					LOG.fine("Sent closure");
-				if(in == null) {
-					in = new ObjectInputStream(jvm.getInputStream());
-					if(LOG.isLoggable(Level.FINE))
-						LOG.fine("Opened new input stream");
+				if (current != null && !current.isActive()) {
+					retire(current);
 				}
-				while(true) {
-				    
-					if(LOG.isLoggable(Level.FINE))
-						LOG.fine("Awating command");
-					
-				    var cmd = in.readInt();
-				    
-					if(LOG.isLoggable(Level.FINE))
-						LOG.fine(MessageFormat.format("Got command {0}", cmd));
-					
-				    if(cmd == Helper.RESP_COMPLETE) {
-					    
-						if(LOG.isLoggable(Level.FINE))
-							LOG.fine("Completed command");
-						
-				        var ok = in.readBoolean();
-		                if (ok) {
-							if(LOG.isLoggable(Level.FINE))
-								LOG.fine("Received OK, waiting for return object.");
-		                    var res = (S) in.readObject();
-
-					        if(LOG.isLoggable(Level.FINE))
-								LOG.fine(MessageFormat.format("Response object: {0}", String.valueOf(res)));
-					        
-							return res;
-		                }
-		                else {
-							if(LOG.isLoggable(Level.FINE))
-								LOG.fine("Received ERR, waiting for exception.");
-							
-		                    var t = (Throwable) in.readObject();
-		                    if(LOG.isLoggable(Level.FINE))
-								LOG.fine(MessageFormat.format("Exception object: {0}", String.valueOf(t)));
-		                    
-		                    if(t instanceof RuntimeException)
-		                    	throw (RuntimeException)t;
-		                    else if(t instanceof Exception)
-		                    	throw (Exception)t;  
-		                    else
-		                    	throw new Exception(t);
-		                }
-		                
-				    }
-				    else if(cmd == Helper.RESP_EVENT) {
-					    
-						if(LOG.isLoggable(Level.FINE))
-							LOG.fine("Event command");
-						
-				        E evt = (E) in.readObject();
-				        
-				        if(LOG.isLoggable(Level.FINE))
-							LOG.fine(MessageFormat.format("Event object: {0}", String.valueOf(evt)));
-				        
-						closure.event(evt);
-				    }
-				    else
-				        throw new IOException("Unexpected response command. " + cmd);
+				if (current == null) {
+					var next = takeIdle();
+					if (next == null) {
+						if (!create)
+							return null;
+						if (warming > 0) {
+							/* A pooled helper is already being started and authorized, wait for it rather than prompting again */
+							awaitWarming();
+							continue;
+						}
+						next = newConnection();
+					}
+					current = next;
+					connections.add(current);
+					warm();
 				}
-			} catch (EOFException e) {
-				if (failOnCancel)
-					throw e;
-				else
-					return null;
-			} finally {
-				lastAuth = System.currentTimeMillis();
+				var connection = current;
+				connection.lease();
 				if (reauthorizationPolicy == ReauthorizationPolicy.EVERY_TIME) {
-					closeJvm();
+					/* Dedicated to this closure, will close as soon as it completes */
+					retire(connection);
 				}
+				return connection;
 			}
 		}
 	}
 
-	private void closeJvm() throws IOException {
+	private void awaitWarming() throws IOException {
+		try {
+			lock.wait();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for pooled Elevator JVM.");
+		}
+		if (closed)
+			throw new IOException("Elevator is closed.");
+	}
+
+	private ElevatedConnection newConnection() throws IOException {
+		var scope = spans.enter();
 		try {
-		    if(jvm != null) {
-    			if(LOG.isLoggable(Level.FINE))
-    				LOG.fine("Closing Elevator JVM");
-    			
-    			jvm.close();
-		    }
+			return startConnection();
 		} finally {
+			scope.close();
+		}
+	}
+
+	private ElevatedConnection startConnection() throws IOException {
+		var elevation = PlatformElevation.forEnvironment(username, password);
+		var providers = pathProviders;
+		if(daemon) {
+			var daemonUser = elevation instanceof PlatformElevation.Unelevated ? System.getProperty("user.name") : username.orElse("root");
+			var channel = HelperDaemon.connect(daemonPath, daemonUser, connectTimeout.isZero() ? DAEMON_ADMIT_TIMEOUT : connectTimeout);
+			if(channel.isPresent()) {
+				if(LOG.isLoggable(Level.FINE))
+					LOG.fine("Attaching to daemon helper at " + daemonPath);
+				return new ElevatedConnection(channel.get(), spans);
+			}
+			providers = new ArrayList<>(pathProviders);
+			providers.add((cp, mp, sp) -> {
+				sp.setProperty("liftlib.daemon", daemonPath.toAbsolutePath().toString());
+				sp.setProperty("liftlib.daemonUser", System.getProperty("user.name"));
+				sp.setProperty("liftlib.daemonIdleTimeout", String.valueOf(daemonIdleTimeout.toSeconds()));
+				sp.setProperty("liftlib.daemonMaxClients", String.valueOf(daemonMaxClients));
+			});
+		}
+		if(LOG.isLoggable(Level.FINE))
+			LOG.fine("Creating new elevator JVM");
+		var jvm = new ElevatedJVM(elevation, devMode.orElseGet(() -> Files.exists(Paths.get("pom.xml"))), providers, rpc.orElse(() -> RPC.get()), forceClassPath, connectTimeout);
+		if(daemon)
+			jvm.detach();
+		return new ElevatedConnection(jvm, spans);
+	}
+
+	private boolean isExpired(ElevatedConnection connection) {
+		return reauthorizationPolicy == ReauthorizationPolicy.INTERVAL
+				&& System.currentTimeMillis() > connection.lastUsed() + reauthorizationInterval.toMillis();
+	}
+
+	private ElevatedConnection takeIdle() throws IOException {
+		ElevatedConnection connection;
+		while ((connection = idle.poll()) != null) {
+			if (connection.isActive() && !isExpired(connection))
+				return connection;
 			if(LOG.isLoggable(Level.FINE))
-				LOG.fine("Closed Elevator JVM");
-			
-			jvm = null;
-			in = null;
-			out = null;
+				LOG.fine("Evicting pooled Elevator JVM");
+			connection.close();
+		}
+		return null;
+	}
+
+	private void warm() {
+		/* The first helper would be used for ever, any others would never be used */
+		if (reauthorizationPolicy == ReauthorizationPolicy.NEVER)
+			return;
+		while (!closed && idle.size() + warming < poolSize) {
+			warming++;
+			executor.execute(() -> {
+				ElevatedConnection connection = null;
+				try {
+					connection = newConnection();
+				} catch (Exception e) {
+					/* Do not retry, this may well be the user cancelling the prompt */
+					LOG.log(Level.WARNING, "Failed to start pooled Elevator JVM.", e);
+				} finally {
+					synchronized (lock) {
+						warming--;
+						lock.notifyAll();
+						if (connection != null) {
+							if (closed) {
+								try {
+									connection.close();
+								} catch (IOException ioe) {
+								}
+							} else {
+								idle.add(connection);
+							}
+						}
+					}
+				}
+			});
 		}
 	}
 
+	private void retire(ElevatedConnection connection) throws IOException {
+		if (connection == current)
+			current = null;
+		connection.retire();
+	}
+
 	@Override
 	public void close() {
-		if(jvm != null)
+		List<ElevatedConnection> toClose;
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+			toClose = new ArrayList<>(connections);
+			toClose.addAll(idle);
+			connections.clear();
+			idle.clear();
+			current = null;
+		}
+		IOException ioe = null;
+		for (var connection : toClose) {
 			try {
-				closeJvm();
+				if(LOG.isLoggable(Level.FINE))
+					LOG.fine("Closing Elevator JVM");
+				connection.close();
 			} catch (IOException e) {
-				throw new UncheckedIOException(e);
+				ioe = e;
 			}
-		
+		}
+		if (ioe != null)
+			throw new UncheckedIOException(ioe);
 	}
 
 }
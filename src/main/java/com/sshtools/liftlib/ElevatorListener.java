@@ -0,0 +1,96 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib;
+
+import java.time.Duration;
+
+/**
+ * Receives timings for each phase of starting helpers and running closures,
+ * see {@link Elevator.ElevatorBuilder#withListener(ElevatorListener)}. The same
+ * timings are also recorded as <code>com.sshtools.liftlib.Phase</code> Java
+ * Flight Recorder events.
+ * <p>
+ * Listeners may be called from any thread, including the thread that reads
+ * responses from the helper, so should be thread safe and return quickly.
+ */
+@FunctionalInterface
+public interface ElevatorListener {
+
+	public enum Phase {
+		/**
+		 * Looking up the administrator user, which {@link OS} does the first
+		 * time it is needed (or in the background, if prefetched). Happens once
+		 * per JVM, so only reported for the first helper started by each
+		 * elevator.
+		 */
+		OS_INIT,
+		/**
+		 * Searching the <code>PATH</code> for an elevation tool. The detail is
+		 * the command searched for.
+		 */
+		COMMAND_LOOKUP,
+		/**
+		 * Saving the terminal settings before a console password prompt.
+		 */
+		SAVE_STTY,
+		/**
+		 * Building the helper's command line, mostly its class path and module
+		 * path (including any copying needed on macOS).
+		 */
+		CLASS_PATH,
+		/**
+		 * Starting the elevation tool (e.g. <code>sudo</code>) process.
+		 */
+		SPAWN,
+		/**
+		 * From the elevation tool starting until the helper itself started,
+		 * mostly the time taken for the user to authorize.
+		 */
+		AUTHENTICATE,
+		/**
+		 * From the helper starting until it connected back, mostly JVM startup.
+		 */
+		CONNECT,
+		/**
+		 * Encoding a closure (or batch of closures). The detail is the class of
+		 * closure.
+		 */
+		SERIALIZE,
+		/**
+		 * The remainder of a closure round trip, i.e. writing, sending and reading
+		 * the request and response, and decoding and encoding them in the helper.
+		 * The detail is the class of closure.
+		 */
+		TRANSIT,
+		/**
+		 * Running a closure in the helper. The detail is the class of closure.
+		 */
+		EXECUTE,
+		/**
+		 * Decoding a closure's result. The detail is the class of closure.
+		 */
+		DESERIALIZE
+	}
+
+	/**
+	 * A phase has completed.
+	 *
+	 * @param phase phase
+	 * @param detail detail, e.g. the class of closure, or <code>null</code>
+	 * @param duration how long the phase took
+	 */
+	void span(Phase phase, String detail, Duration duration);
+}
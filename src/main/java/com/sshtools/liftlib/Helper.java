@@ -15,20 +15,70 @@
  */
 package com.sshtools.liftlib;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.io.UncheckedIOException;
-import java.nio.channels.Channels;
+import java.nio.file.Paths;
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.impl.ChannelStreams;
+import com.sshtools.liftlib.impl.ChildProcesses;
+import com.sshtools.liftlib.impl.ClosureExecutedEvent;
+import com.sshtools.liftlib.impl.Codecs;
+import com.sshtools.liftlib.impl.EventEmittedEvent;
+import com.sshtools.liftlib.impl.Frames;
+import com.sshtools.liftlib.impl.Frames.Frame;
+import com.sshtools.liftlib.impl.HelperDaemon;
+import com.sshtools.liftlib.impl.InputPipe;
+import com.sshtools.liftlib.impl.Spans;
+import com.sshtools.liftlib.impl.Workers;
 
 public class Helper implements Callable<Integer> {
     
     public final static int RESP_COMPLETE = 0;
     public final static int RESP_EVENT = 1;
+    public final static int RESP_BATCH = 2;
+    public final static int RESP_INPUT_CREDIT = 3;
+
+    public final static int CMD_CLOSURE = 0;
+    public final static int CMD_BATCH = 1;
+    public final static int CMD_CREDIT = 2;
+    public final static int CMD_PIPE = 3;
+    public final static int CMD_INPUT = 4;
+    public final static int CMD_CANCEL = 5;
+
+	private final static Logger LOG = Logger.getLogger(Helper.class.getSimpleName());
+
+	private final static int MAX_EVENTS = Integer.getInteger("liftlib.eventBatchSize", 512);
+	private final static long MAX_DELAY = Long.getLong("liftlib.eventBatchDelay", 5);
+	private final static int MAX_BYTES = 64 * 1024;
+
+	private final static class Flusher {
+		private final static ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+			var t = new Thread(r, "ElevatedEventFlusher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private final static long STARTED = System.currentTimeMillis();
 
 	public static void main(String[] args) throws Exception {
 		System.exit(new Helper(args).call());
@@ -45,65 +95,549 @@ public class Helper implements Callable<Integer> {
 		var helperPath = System.getProperty("liftlib.socket", System.getenv("LIFTLIB_SOCKET"));
 		if(helperPath == null && args.length > 0)
 		    helperPath = args[0];
-		if (helperPath == null) {
-			System.setOut(System.err);
-			System.setIn(InputStream.nullInputStream());
-			try (var in = new ObjectInputStream(System.in)) {
-				try (var out = new ObjectOutputStream(System.out)) {
-					cmdLoop(in, out);
-				}
-			} catch (EOFException e) {
+		
+		var daemonPath = System.getProperty("liftlib.daemon");
+		HelperDaemon daemon = null;
+		if(daemonPath != null) {
+			try {
+				daemon = new HelperDaemon(Paths.get(daemonPath),
+						System.getProperty("liftlib.daemonUser"),
+						Integer.getInteger("liftlib.daemonMaxClients", 16),
+						Duration.ofSeconds(Long.getLong("liftlib.daemonIdleTimeout", 300)),
+						this::cmdLoop);
 			}
-		} else {
-			var channel = RPC.get().connect(helperPath);
-			try (var in = new ObjectInputStream(Channels.newInputStream(channel))) {
-				try (var out = new ObjectOutputStream(Channels.newOutputStream(channel))) {
-					cmdLoop(in, out);
+			catch(IOException ioe) {
+				LOG.log(Level.WARNING, "Could not start daemon, serving this client only.", ioe);
+			}
+		}
+		try {
+			if (helperPath == null) {
+				System.setOut(System.err);
+				System.setIn(InputStream.nullInputStream());
+				try (var frames = new Frames(System.in, System.out)) {
+					serve(daemon, frames);
+				} catch (EOFException e) {
+				}
+			} else {
+				var channel = RPC.get().connectChannel(helperPath);
+				try (var frames = new Frames(ChannelStreams.input(channel), ChannelStreams.output(channel))) {
+					/* Tell the caller when we started, so it can report how long authentication took */
+					var hello = new DataOutputStream(ChannelStreams.output(channel));
+					hello.writeLong(ProcessHandle.current().info().startInstant().map(Instant::toEpochMilli).orElse(STARTED));
+					hello.flush();
+					serve(daemon, frames);
+				} catch (EOFException e) {
 				}
-			} catch (EOFException e) {
 			}
+			if (daemon != null)
+				daemon.awaitIdle();
+		} finally {
+			if (daemon != null)
+				daemon.close();
 		}
 		return 0;
 	}
 
-    private void cmdLoop(ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-		while (true) {
-			@SuppressWarnings("unchecked")
-			var closure = (ElevatedClosure<Serializable, Serializable>) in.readObject();
-			if (closure == null)
-				return;
+	private void serve(HelperDaemon daemon, Frames frames) throws IOException {
+		if (daemon == null)
+			cmdLoop(frames);
+		else
+			daemon.serve(frames);
+	}
+
+    private void cmdLoop(Frames frames) throws IOException {
+		var executor = Workers.get();
+		var streams = new ConcurrentHashMap<Long, EventBuffer>();
+		var inputs = new ConcurrentHashMap<Long, InputPipe>();
+		var running = new ConcurrentHashMap<Long, Running>();
+		try {
+			while (true) {
+				var frame = frames.read();
+				var id = frame.id();
+				switch (frame.type()) {
+				case CMD_CLOSURE:
+				case CMD_PIPE:
+					var in = frame.payload();
+					var events = new EventBuffer(frames, id, -1, in.readLong());
+					/* Register before the closure runs, so credit or input sent immediately after it is not lost */
+					if (events.isFlowControlled())
+						streams.put(id, events);
+					InputPipe input = null;
+					if (frame.type() == CMD_PIPE) {
+						input = new InputPipe(bytes -> frames.write(RESP_INPUT_CREDIT, id, out -> out.writeLong(bytes)));
+						inputs.put(id, input);
+					}
+					var closureInput = input;
+					var run = new Running(frames);
+					running.put(id, run);
+					executor.execute(() -> {
+						/* Cancelled while waiting for a thread */
+						if (!run.start())
+							return;
+						try {
+							runClosure(id, in, events, closureInput, frames);
+						} catch (IOException ioe) {
+							throw new UncheckedIOException(ioe);
+						} finally {
+							run.finish();
+							running.remove(id);
+							streams.remove(id);
+							closeInput(inputs.remove(id));
+						}
+					});
+					break;
+				case CMD_BATCH:
+					var batch = new Running(frames);
+					running.put(id, batch);
+					executor.execute(() -> {
+						if (!batch.start())
+							return;
+						try {
+							runBatch(frame, frames, batch);
+						} catch (IOException ioe) {
+							throw new UncheckedIOException(ioe);
+						} finally {
+							batch.finish();
+							running.remove(id);
+						}
+					});
+					break;
+				case CMD_CREDIT:
+					var stream = streams.get(id);
+					if (stream != null)
+						stream.credit(frame.payload().readLong());
+					break;
+				case CMD_INPUT:
+					/* Input for a closure that has already completed is dropped */
+					var pipe = inputs.get(id);
+					if (pipe != null) {
+						if (frame.size() == 0)
+							pipe.finish();
+						else
+							pipe.receive(frame.payloadBytes());
+					}
+					break;
+				case CMD_CANCEL:
+					var cancelled = running.get(id);
+					if (cancelled != null && cancelled.cancel()) {
+						running.remove(id);
+						streams.remove(id);
+						closeInput(inputs.remove(id));
+						sendError(frames, id, 0, new CancellationException("Cancelled."));
+					}
+					break;
+				default:
+					throw new IOException("Unexpected request command. " + frame.type());
+				}
+			}
+		} finally {
+			/* Nothing is left to receive the results, so stop any closures still running */
+			if (!running.isEmpty()) {
+				if (LOG.isLoggable(Level.FINE))
+					LOG.fine(MessageFormat.format("Caller has gone, cancelling {0} closures", running.size()));
+				running.values().forEach(Running::cancel);
+			}
+			/* And wake any closures still waiting for credit or input that will never come */
+			streams.values().forEach(EventBuffer::fail);
+			inputs.values().forEach(Helper::closeInput);
+		}
+	}
+
+	private static void closeInput(InputPipe input) {
+		if (input != null) {
 			try {
-			    var lock = new Object();
-				var result = closure.call(new ElevatedClosure<Serializable, Serializable>() {
-                    @Override
-                    public void event(Serializable event) {
-                        synchronized(lock) {
-                            try {
-                                out.writeInt(RESP_EVENT);
-                                out.writeObject(event);
-                            }
-                            catch(IOException ioe) {
-                                throw new UncheckedIOException(ioe);
-                            }
-                        }
-                    }
-
-                    @Override
-                    public Serializable call(ElevatedClosure<Serializable, Serializable> proxy) throws Exception {
-                        throw new UnsupportedOperationException();
-                    }
-                });
-                out.writeInt(RESP_COMPLETE);
+				input.close();
+			} catch (IOException ioe) {
+			}
+		}
+	}
+
+	/**
+	 * A closure (or batch) waiting for or running on a worker thread, that the
+	 * caller may cancel. A running closure is interrupted, and any processes it
+	 * started are destroyed.
+	 */
+	private final static class Running {
+		private final static int WAITING = 0;
+		private final static int RUNNING = 1;
+		private final static int CANCELLED = 2;
+		private final static int DONE = 3;
+
+		private final Frames frames;
+
+		private int state;
+		private Thread thread;
+		private ChildProcesses.Scope scope;
+
+		private Running(Frames frames) {
+			this.frames = frames;
+		}
+
+		synchronized boolean start() {
+			if (state != WAITING)
+				return false;
+			state = RUNNING;
+			thread = Thread.currentThread();
+			scope = ChildProcesses.open();
+			return true;
+		}
+
+		/**
+		 * Cancel the closure.
+		 *
+		 * @return <code>true</code> if it had not started, so will never run
+		 */
+		synchronized boolean cancel() {
+			switch (state) {
+			case WAITING:
+				state = CANCELLED;
+				return true;
+			case RUNNING:
+				state = CANCELLED;
+				frames.interrupt(thread);
+				scope.destroy();
+				return false;
+			default:
+				return false;
+			}
+		}
+
+		synchronized boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		void finish() {
+			synchronized (this) {
+				state = DONE;
+				scope.close();
+			}
+			/* Don't leave an interrupt from a late cancel for the next closure on this thread */
+			Thread.interrupted();
+		}
+	}
+
+	/**
+	 * Records a {@link ClosureExecutedEvent} for one closure, but only if Flight
+	 * Recorder is running. Otherwise does nothing.
+	 */
+	private final static class Execution {
+		private final ClosureExecutedEvent event;
+
+		private Execution(long id) {
+			event = Spans.isFlightRecorderInitialized() ? new ClosureExecutedEvent() : null;
+			if (event != null)
+				event.id = id;
+		}
+
+		void begin(Object closure) {
+			if (event != null) {
+				event.closure = closure.getClass().getName();
+				event.begin();
+			}
+		}
+
+		void end() {
+			if (event != null)
+				event.end();
+		}
+
+		void failed() {
+			if (event != null) {
+				event.failed = true;
+				event.commit();
+			}
+		}
+
+		void succeeded(long resultSize) {
+			if (event != null) {
+				event.resultSize = resultSize;
+				event.commit();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void runClosure(long id, DataInputStream in, EventBuffer events, InputPipe input, Frames frames) throws IOException {
+		var codecs = Codecs.get();
+		var executed = new Execution(id);
+		Serializable result;
+		var started = 0L;
+		try {
+			var closure = (ElevatedClosure<Serializable, Serializable>) codecs.read(in, Thread.currentThread().getContextClassLoader());
+			executed.begin(closure);
+			started = System.nanoTime();
+			result = closure.call(proxy(events, input));
+		} catch (Throwable t) {
+			var elapsed = started == 0 ? 0 : System.nanoTime() - started;
+			events.flush();
+			executed.failed();
+			sendError(frames, id, elapsed, t);
+			return;
+		}
+		var elapsed = System.nanoTime() - started;
+		executed.end();
+		events.flush();
+		/* Encode first, so a result that cannot be sent is reported as a failure rather than leaving the caller waiting */
+		byte[] encoded;
+		try {
+			encoded = codecs.encode(result);
+			/* Also allow for the elapsed time and status */
+			if (!Frames.fits(encoded.length + 9))
+				throw new IOException("Result of " + encoded.length + " bytes is too large to send.");
+		} catch (Throwable e) {
+			executed.failed();
+			sendError(frames, id, elapsed, e);
+			return;
+		}
+		try {
+			frames.write(RESP_COMPLETE, id, out -> {
+				out.writeLong(elapsed);
 				out.writeBoolean(true);
-				out.writeObject(result);
+				out.write(encoded);
+			});
+		} finally {
+			executed.succeeded(encoded.length);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void runBatch(Frame frame, Frames frames, Running batch) throws IOException {
+		var id = frame.id();
+		var codecs = Codecs.get();
+		var in = frame.payload();
+		var failFast = in.readBoolean();
+		var size = in.readInt();
+		var statuses = new BatchResult.Status[size];
+		var results = new byte[size][];
+		var failed = false;
+		var elapsed = 0L;
+		/* Elapsed time and count, then status and length of each item */
+		var frameSize = 12L + size * 5L;
+		for (int i = 0; i < size; i++) {
+			var data = new byte[in.readInt()];
+			in.readFully(data);
+			if ((failed && failFast) || batch.isCancelled()) {
+				statuses[i] = BatchResult.Status.SKIPPED;
+				continue;
+			}
+			var events = new EventBuffer(frames, id, i, Long.MAX_VALUE);
+			var executed = new Execution(id);
+			try {
+				var closure = (ElevatedClosure<Serializable, Serializable>) codecs.decode(data, Thread.currentThread().getContextClassLoader());
+				executed.begin(closure);
+				var started = System.nanoTime();
+				Serializable result;
+				try {
+					result = closure.call(proxy(events, null));
+				} finally {
+					elapsed += System.nanoTime() - started;
+					executed.end();
+				}
+				results[i] = encodeResult(codecs, result, frameSize);
+				statuses[i] = BatchResult.Status.OK;
+				executed.succeeded(results[i].length);
 			} catch (Throwable t) {
-                out.writeInt(RESP_COMPLETE);
-				out.writeBoolean(false);
-				out.writeObject(t);
+				failed = true;
+				results[i] = encodeError(t);
+				statuses[i] = BatchResult.Status.FAILED;
+				executed.failed();
 			} finally {
-				out.flush();
+				if (results[i] != null)
+					frameSize += results[i].length;
+				events.flush();
 			}
 		}
+		var batchElapsed = elapsed;
+		frames.write(RESP_BATCH, id, out -> {
+			out.writeLong(batchElapsed);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeByte(statuses[i].ordinal());
+				if (statuses[i] != BatchResult.Status.SKIPPED) {
+					out.writeInt(results[i].length);
+					out.write(results[i]);
+				}
+			}
+		});
+	}
+
+	private ElevatedClosure<Serializable, Serializable> proxy(EventBuffer buffer, InputPipe input) {
+		return new ElevatedClosure<Serializable, Serializable>() {
+			@Override
+			public void event(Serializable event) {
+				try {
+					buffer.add(event);
+				} catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+			}
+
+			@Override
+			public InputStream input() {
+				return input == null ? InputStream.nullInputStream() : input;
+			}
+
+			@Override
+			public Serializable call(ElevatedClosure<Serializable, Serializable> proxy) throws Exception {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Events emitted by a single closure, waiting to be sent. Events are sent
+	 * together in a single frame once enough have been buffered (see
+	 * <code>liftlib.eventBatchSize</code>), a short time after the first was
+	 * buffered (see <code>liftlib.eventBatchDelay</code>), or when the closure
+	 * completes, whichever is first.
+	 * <p>
+	 * When the caller is using flow control, each event also uses up one credit,
+	 * and the closure is blocked when it emits an event with no credit left,
+	 * until the caller grants more.
+	 */
+	private final static class EventBuffer {
+		private final Frames frames;
+		private final long id;
+		private final int index;
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private int count;
+		private long credits;
+		private boolean failed;
+		private ScheduledFuture<?> scheduled;
+
+		private EventBuffer(Frames frames, long id, int index, long credits) {
+			this.frames = frames;
+			this.id = id;
+			this.index = index;
+			this.credits = credits;
+		}
+
+		boolean isFlowControlled() {
+			return credits != Long.MAX_VALUE;
+		}
+
+		synchronized void credit(long n) {
+			credits = credits + n < 0 ? Long.MAX_VALUE : credits + n;
+			notifyAll();
+		}
+
+		synchronized void fail() {
+			failed = true;
+			notifyAll();
+		}
+
+		synchronized void add(Serializable event) throws IOException {
+			var data = Codecs.get().encode(event);
+			var emitted = Spans.isFlightRecorderInitialized() ? new EventEmittedEvent() : null;
+			if (emitted != null)
+				emitted.begin();
+			while (credits == 0) {
+				if (failed)
+					throw new EOFException("Caller has gone, no more credit will arrive.");
+				flush();
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for credit.");
+				}
+			}
+			if (emitted != null) {
+				emitted.end();
+				if (emitted.shouldCommit()) {
+					emitted.event = event == null ? null : event.getClass().getName();
+					emitted.id = id;
+					emitted.size = data.length;
+					emitted.commit();
+				}
+			}
+			if (credits != Long.MAX_VALUE)
+				credits--;
+			bytes.write(data);
+			count++;
+			if (count >= MAX_EVENTS || bytes.size() >= MAX_BYTES || MAX_DELAY <= 0 || credits == 0) {
+				flush();
+			} else if (scheduled == null) {
+				scheduled = Flusher.FLUSHER.schedule(() -> {
+					try {
+						flush();
+					} catch (IOException ioe) {
+						if (LOG.isLoggable(Level.FINE))
+							LOG.log(Level.FINE, "Failed to flush events.", ioe);
+					}
+				}, MAX_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		synchronized void flush() throws IOException {
+			if (scheduled != null) {
+				scheduled.cancel(false);
+				scheduled = null;
+			}
+			if (count > 0) {
+				var n = count;
+				count = 0;
+				try {
+					frames.write(RESP_EVENT, id, out -> {
+						out.writeInt(index);
+						out.writeInt(n);
+						bytes.writeTo(out);
+					});
+				} finally {
+					bytes.reset();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encode the result of one closure in a batch, failing it rather than the
+	 * whole batch if it cannot be encoded or would not fit in the response.
+	 */
+	private static byte[] encodeResult(Codecs codecs, Serializable result, long frameSize) throws IOException {
+		var encoded = codecs.encode(result);
+		if (!Frames.fits(frameSize + encoded.length))
+			throw new IOException("Result of " + encoded.length + " bytes is too large to send in this batch.");
+		return encoded;
+	}
+
+	/**
+	 * Encode an exception to send to the caller. Anything that cannot be encoded
+	 * (including a failure in a codec) is replaced by an {@link IOException}
+	 * describing it, or failing that just the description, so something is
+	 * always sent.
+	 */
+	private byte[] encodeError(Throwable t) throws IOException {
+		var codecs = Codecs.get();
+		try {
+			return codecs.encode(t);
+		} catch (Throwable e) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "Failed to encode error, sending description instead.", e);
+			var description = describe(t);
+			try {
+				return codecs.encode(new IOException(description));
+			} catch (Throwable e2) {
+				return codecs.encode(description);
+			}
+		}
+	}
+
+	private static String describe(Throwable t) {
+		try {
+			return t.toString();
+		} catch (Throwable e) {
+			return t.getClass().getName();
+		}
+	}
+
+	private void sendError(Frames frames, long id, long elapsed, Throwable t) throws IOException {
+		var error = encodeError(t);
+		frames.write(RESP_COMPLETE, id, out -> {
+			out.writeLong(elapsed);
+			out.writeBoolean(false);
+			out.write(error);
+		});
 	}
 
 }
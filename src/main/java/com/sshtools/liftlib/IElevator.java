@@ -1,13 +1,34 @@
 package com.sshtools.liftlib;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 import com.sshtools.liftlib.Elevator.Call;
 import com.sshtools.liftlib.Elevator.Run;
+import com.sshtools.liftlib.impl.LocalClosurePipe;
+import com.sshtools.liftlib.impl.LocalClosurePublisher;
 
 public interface IElevator extends Closeable {
 
+	/**
+	 * What to do when a closure in a batch fails.
+	 */
+	public enum BatchMode {
+		/**
+		 * Stop at the first failure, all remaining closures are skipped.
+		 */
+		FAIL_FAST,
+		/**
+		 * Run every closure regardless of earlier failures.
+		 */
+		CONTINUE_ON_ERROR
+	}
+
 	default void run(Run closure) throws Exception {
 		closure(closure);
 	}
@@ -38,6 +59,106 @@ public interface IElevator extends Closeable {
 
 	<S extends Serializable, E extends Serializable> S closure(ElevatedClosure<S, E> closure) throws Exception;
 
+	default List<BatchResult> batch(List<? extends ElevatedClosure<?, ?>> closures) throws Exception {
+		return batch(closures, BatchMode.CONTINUE_ON_ERROR);
+	}
+
+	/**
+	 * Run a list of closures, in order, in a single round trip to the helper. The
+	 * outcome of every closure is returned in the same order, whether it
+	 * succeeded, failed or was skipped. Events emitted by each closure are
+	 * delivered to that closure on the calling thread.
+	 *
+	 * @param closures closures
+	 * @param mode what to do when a closure fails
+	 * @return outcome of each closure
+	 * @throws Exception if the batch as a whole could not be run
+	 */
+	@SuppressWarnings("unchecked")
+	default List<BatchResult> batch(List<? extends ElevatedClosure<?, ?>> closures, BatchMode mode) throws Exception {
+		var results = new ArrayList<BatchResult>(closures.size());
+		var failed = false;
+		for (var closure : closures) {
+			if (failed && mode == BatchMode.FAIL_FAST) {
+				results.add(BatchResult.skipped());
+			} else {
+				try {
+					results.add(BatchResult.ok(closure((ElevatedClosure<Serializable, Serializable>) closure)));
+				} catch (Exception e) {
+					failed = true;
+					results.add(BatchResult.failed(e));
+				}
+			}
+		}
+		return results;
+	}
+
+	default CompletableFuture<Void> runAsync(Run closure) {
+		return closureAsync(closure).thenAccept(r -> {});
+	}
+
+	default <RET extends Serializable> CompletableFuture<RET> callAsync(Call<RET> closure) {
+		return closureAsync(closure);
+	}
+
+	/**
+	 * Run a closure without blocking the calling thread. The returned future
+	 * completes with the closure's result, or exceptionally with whatever it
+	 * threw. Implementations that cannot do better simply run
+	 * {@link #closure(ElevatedClosure)} on the common pool.
+	 *
+	 * @param <S> return type
+	 * @param <E> event type
+	 * @param closure closure
+	 * @return future result
+	 */
+	default <S extends Serializable, E extends Serializable> CompletableFuture<S> closureAsync(ElevatedClosure<S, E> closure) {
+		var future = new CompletableFuture<S>();
+		ForkJoinPool.commonPool().execute(() -> {
+			try {
+				future.complete(closure(closure));
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Create a publisher that runs a closure when subscribed to, and delivers its
+	 * events to the subscriber with back-pressure. Only as many events as the
+	 * subscriber has requested are ever sent from the helper, so memory use is
+	 * bounded however quickly the closure emits them. Implementations that cannot
+	 * do better run the closure in this JVM.
+	 *
+	 * @param <S> return type
+	 * @param <E> event type
+	 * @param closure closure
+	 * @return publisher
+	 */
+	default <S extends Serializable, E extends Serializable> ClosurePublisher<S, E> publisher(ElevatedClosure<S, E> closure) {
+		return new LocalClosurePublisher<>(closure, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Start a closure that may read input from the caller while it runs. Bytes
+	 * written to {@link ClosurePipe#input()} are read by the closure from
+	 * {@link ElevatedClosure#input()} on the proxy it is passed, and closing the
+	 * stream signals the end of input. Only a limited amount of input is buffered
+	 * ahead of the closure, so writes block when it falls behind. Events are
+	 * delivered to the closure as for {@link #closureAsync(ElevatedClosure)}.
+	 * Implementations that cannot do better run the closure in this JVM.
+	 *
+	 * @param <S> return type
+	 * @param <E> event type
+	 * @param closure closure
+	 * @return pipe
+	 * @throws IOException if the closure could not be started
+	 */
+	default <S extends Serializable, E extends Serializable> ClosurePipe<S> pipe(ElevatedClosure<S, E> closure) throws IOException {
+		return new LocalClosurePipe<>(closure);
+	}
+
 	@Override
 	void close();
 
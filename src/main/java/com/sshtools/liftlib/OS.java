@@ -17,10 +17,8 @@ package com.sshtools.liftlib;
 
 import org.graalvm.nativeimage.ImageInfo;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -29,13 +27,17 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
+import com.sshtools.liftlib.impl.AdministratorUser;
+import com.sshtools.liftlib.impl.CommandIndex;
+import com.sshtools.liftlib.impl.Privileges;
+import com.sshtools.liftlib.impl.TreeCopier;
+
 public class OS {
             
 	public static class CopyFileVisitor extends SimpleFileVisitor<Path> {
@@ -64,6 +66,115 @@ public class OS {
 		}
 	}
 
+	/**
+	 * Options for {@link OS#copy(Path, Path, CopyListener, CopyFlag...)}.
+	 */
+	public enum CopyFlag {
+		/**
+		 * Copy directories concurrently, using a fork-join pool.
+		 */
+		PARALLEL,
+		/**
+		 * Create hard links to the original files rather than copying them, where
+		 * the file system allows. If it does not (e.g. the target is on another
+		 * device), files are copied. Note that a linked file is the same file, so
+		 * changes made to it in place are seen in both trees.
+		 */
+		HARD_LINK,
+		/**
+		 * Skip files that already exist in the target with the same size and
+		 * modification time.
+		 */
+		SKIP_UNCHANGED
+	}
+
+	/**
+	 * Told about each file as it is copied. May be called concurrently, when
+	 * copying in parallel.
+	 */
+	@FunctionalInterface
+	public interface CopyListener {
+		/**
+		 * A file was copied or linked.
+		 *
+		 * @param source source file
+		 * @param target target file
+		 * @param bytes size of file
+		 */
+		void copied(Path source, Path target, long bytes);
+	}
+
+	/**
+	 * What was done by {@link OS#copy(Path, Path, CopyListener, CopyFlag...)}.
+	 */
+	public final static class CopyStatistics {
+		private final long files;
+		private final long linked;
+		private final long skipped;
+		private final long directories;
+		private final long bytes;
+		private final Duration elapsed;
+
+		public CopyStatistics(long files, long linked, long skipped, long directories, long bytes, Duration elapsed) {
+			this.files = files;
+			this.linked = linked;
+			this.skipped = skipped;
+			this.directories = directories;
+			this.bytes = bytes;
+			this.elapsed = elapsed;
+		}
+
+		/**
+		 * Number of files copied or linked.
+		 *
+		 * @return files
+		 */
+		public long files() {
+			return files;
+		}
+
+		/**
+		 * Number of files that were linked rather than copied.
+		 *
+		 * @return linked files
+		 */
+		public long linked() {
+			return linked;
+		}
+
+		/**
+		 * Number of unchanged files skipped.
+		 *
+		 * @return skipped files
+		 */
+		public long skipped() {
+			return skipped;
+		}
+
+		public long directories() {
+			return directories;
+		}
+
+		/**
+		 * Total size of files copied or linked.
+		 *
+		 * @return bytes
+		 */
+		public long bytes() {
+			return bytes;
+		}
+
+		public Duration elapsed() {
+			return elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return "CopyStatistics [files=" + files + ", linked=" + linked + ", skipped=" + skipped + ", directories="
+					+ directories + ", bytes=" + bytes + ", elapsed=" + elapsed.toMillis() + "ms]";
+		}
+	}
+
 	/**
 	 * The type of desktop in use
 	 *
@@ -123,25 +234,9 @@ public class OS {
 		NONE
 	}
 
-	private static final Map<String, Boolean> commandCache = new HashMap<>();
-	private final static Optional<String> unixAdmin;
-	
 	static {
-        Optional<String> s = Optional.empty();;
-	    if(isUnixLike()) {
-	        try {
-	            var pb = new ProcessBuilder("id", "0");
-	            var p = pb.start();
-	            try(var rdr = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-	                var parts = rdr.readLine().split("\\s+")[0].substring(6);
-	                s = Optional.of(parts.substring(0, parts.length() - 1));
-	            }
-	        }
-	        catch(Exception e) {
-	            s = Optional.empty();
-	        }
-	    }
-        unixAdmin = s;
+		if (Boolean.getBoolean("liftlib.prefetchAdministrator"))
+			AdministratorUser.prefetch();
 	}
 
 	/**
@@ -239,11 +334,24 @@ public class OS {
 					System.getProperty("liftlib.rootUser", "Administrator"));
 		}
 		if (isUnixLike()) {
-			return System.getProperty("liftlib.administratorUsername", System.getProperty("liftlib.rootUser", unixAdmin.orElse("root")));
+			var username = System.getProperty("liftlib.administratorUsername", System.getProperty("liftlib.rootUser"));
+			return username == null ? AdministratorUser.get().orElse("root") : username;
 		}
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Start looking up the administrator username in the background, so that
+	 * {@link #getAdministratorUsername()} does not have to wait later. The same
+	 * happens when {@link OS} is first used if the system property
+	 * <code>liftlib.prefetchAdministrator</code> is <code>true</code>.
+	 *
+	 * @return future administrator username, or empty if unknown
+	 */
+	public static CompletableFuture<Optional<String>> prefetchAdministratorUsername() {
+		return AdministratorUser.prefetch();
+	}
+
 	public static String getJavaPath() {
 		String forceJava = System.getProperty("liftlib.jre");
 		if(forceJava != null)
@@ -262,68 +370,76 @@ public class OS {
 		Files.walkFileTree(sourcePath, new CopyFileVisitor(targetPath));
 	}
 
+	/**
+	 * Copy the contents of a directory, optionally in parallel, using hard links
+	 * and/or skipping unchanged files. Any existing file that is replaced is
+	 * replaced atomically.
+	 *
+	 * @param sourcePath source directory
+	 * @param targetPath target directory
+	 * @param listener told about each file copied, or <code>null</code>
+	 * @param flags flags
+	 * @return statistics
+	 * @throws IOException on error
+	 */
+	public static CopyStatistics copy(Path sourcePath, Path targetPath, CopyListener listener, CopyFlag... flags) throws IOException {
+		return new TreeCopier(sourcePath, targetPath, listener, flags).copy();
+	}
+
 	public static boolean hasCommand(String command) {
-		synchronized (commandCache) {
-			Boolean val = commandCache.get(command);
-			if (val == null) {
-				boolean exists = doHasCommand(command);
-				commandCache.put(command, exists);
-				return exists;
-			}
-			return val;
-		}
+		return findCommand(command).isPresent();
+	}
+
+	/**
+	 * Find the absolute path of a command on the <code>PATH</code>. Results are
+	 * cached, see {@link #invalidateCommandCache()}.
+	 *
+	 * @param command command name
+	 * @return path of command, or empty if not found
+	 */
+	public static Optional<Path> findCommand(String command) {
+		return CommandIndex.get().find(command);
+	}
+
+	/**
+	 * Forget all cached command lookups, for example after installing a command.
+	 * The cache is otherwise refreshed after <code>liftlib.commandCacheTtl</code>
+	 * seconds.
+	 */
+	public static void invalidateCommandCache() {
+		CommandIndex.get().invalidate();
 	}
 
 	/**
-	 * Get if currently running as an administrator.
+	 * Get if currently running as an administrator. The answer is remembered,
+	 * see {@link #refreshPrivileges()}.
 	 * 
 	 * @return administrator
 	 */
 	public static boolean isAdministrator() {
-		if (isWindows()) {
-			try {
-				String programFiles = System.getenv("ProgramFiles");
-				if (programFiles == null) {
-					programFiles = "C:\\Program Files";
-				}
-				File temp = new File(programFiles, UUID.randomUUID().toString() + ".txt");
-				temp.deleteOnExit();
-				if (temp.createNewFile()) {
-					temp.delete();
-					return true;
-				} else {
-					return false;
-				}
-			} catch (IOException e) {
-				return false;
-			}
-		}
-		if (isUnixLike()) {
-			return getAdministratorUsername().equals(System.getProperty("user.name"));
-		}
-		throw new UnsupportedOperationException();
+		return Privileges.get().administrator();
 	}
-	
+
+	/**
+	 * Get if currently running as an administrator, having elevated from a
+	 * different user that logged in. The answer is remembered, see
+	 * {@link #refreshPrivileges()}.
+	 *
+	 * @return elevated, always <code>false</code> if not an administrator
+	 * @throws UnsupportedOperationException if an administrator on a platform
+	 *                                       other than Linux
+	 */
 	public static boolean isElevated() {
-		if (!isAdministrator())
-			return false;
-		if (isLinux()) {
-			try {
-				var pb = new ProcessBuilder("logname");
-				var p = pb.start();
-				try (var rdr = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-					var ln = rdr.readLine();
-					if(ln == null || ln.equals("") || ln.equals("root") || ln.endsWith("no login name")) {
-						return false;
-					}
-					return !getAdministratorUsername().equals(ln);
-				}
-			} catch (Exception e) {
-			}
-			return false;
-		} else {
-			throw new UnsupportedOperationException();
-		}
+		return Privileges.get().elevated();
+	}
+
+	/**
+	 * Work out again whether this process is running as an administrator, and
+	 * whether it is elevated, in case this has changed since
+	 * {@link #isAdministrator()} or {@link #isElevated()} were first used.
+	 */
+	public static void refreshPrivileges() {
+		Privileges.refresh();
 	}
 
     public static final String osName() {
@@ -390,30 +506,6 @@ public class OS {
 		return l.isEmpty() ? null : String.join(File.pathSeparator, l);
 	}
 
-	protected static boolean doHasCommand(String command) {
-		String path = System.getenv("PATH");
-		if (path != "") {
-			boolean found = false;
-			for (String p : path.split(File.pathSeparator)) {
-				File f = new File(p);
-				if (f.isDirectory()) {
-					String cmd = command;
-					if (isWindows()) {
-						cmd += ".exe";
-					}
-					File e = new File(f, cmd);
-					if (e.exists()) {
-						found = true;
-						break;
-					}
-				}
-			}
-			return found;
-		}
-		throw new UnsupportedOperationException(
-		        osName() + " is not supported. Cannot determine if command " + command + " exists");
-	}
-
 	private static boolean isBlank(String str) {
 		return str == null || str.length() == 0;
 	}
@@ -18,6 +18,7 @@ package com.sshtools.liftlib;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ServiceLoader;
 
@@ -26,11 +27,36 @@ import com.sshtools.liftlib.impl.TCPRPC;
 public interface RPC {
 	
 	public interface Endpoint extends Closeable {
+		/**
+		 * Socket address of this endpoint, or <code>null</code> if the transport
+		 * is not socket based.
+		 * 
+		 * @return address
+		 */
 		SocketAddress address();
 		
 		String uri();
 
+		/**
+		 * Accept the connection from the helper as a socket. Transports that are
+		 * not socket based throw {@link UnsupportedOperationException}, so use
+		 * {@link #acceptChannel()} instead.
+		 *
+		 * @return socket channel
+		 * @throws IOException on error
+		 */
 		SocketChannel accept() throws IOException;
+
+		/**
+		 * Accept the connection from the helper. By default this is the socket
+		 * returned by {@link #accept()}.
+		 *
+		 * @return channel
+		 * @throws IOException on error
+		 */
+		default ByteChannel acceptChannel() throws IOException {
+			return accept();
+		}
 	}
 
 	public static RPC get() {
@@ -60,5 +86,26 @@ public interface RPC {
 
 	Endpoint endpoint() throws IOException;
 
+	/**
+	 * Connect to the caller as a socket. Transports that are not socket based
+	 * throw {@link UnsupportedOperationException}, so use
+	 * {@link #connectChannel(String)} instead.
+	 *
+	 * @param helperPath URI of the caller's endpoint
+	 * @return socket channel
+	 * @throws IOException on error
+	 */
 	SocketChannel connect(String helperPath) throws IOException;
+
+	/**
+	 * Connect to the caller. By default this is the socket returned by
+	 * {@link #connect(String)}.
+	 *
+	 * @param helperPath URI of the caller's endpoint
+	 * @return channel
+	 * @throws IOException on error
+	 */
+	default ByteChannel connectChannel(String helperPath) throws IOException {
+		return connect(helperPath);
+	}
 }
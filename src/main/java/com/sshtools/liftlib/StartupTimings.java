@@ -0,0 +1,73 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib;
+
+import java.time.Duration;
+
+/**
+ * How long each phase of starting a helper took.
+ * <ul>
+ * <li><strong>Class path</strong> - building the helper's command line, including
+ * any class path copying.</li>
+ * <li><strong>Spawn</strong> - starting the elevation process (e.g.
+ * <code>sudo</code>).</li>
+ * <li><strong>Authenticate</strong> - from the elevation process starting until
+ * the elevated helper itself started, i.e. mostly the time the user spent
+ * authorizing.</li>
+ * <li><strong>Connect</strong> - from the helper starting until it connected
+ * back, i.e. mostly helper JVM startup.</li>
+ * </ul>
+ */
+public final class StartupTimings {
+
+	private final Duration classPath;
+	private final Duration spawn;
+	private final Duration authenticate;
+	private final Duration connect;
+
+	public StartupTimings(Duration classPath, Duration spawn, Duration authenticate, Duration connect) {
+		this.classPath = classPath;
+		this.spawn = spawn;
+		this.authenticate = authenticate;
+		this.connect = connect;
+	}
+
+	public Duration classPath() {
+		return classPath;
+	}
+
+	public Duration spawn() {
+		return spawn;
+	}
+
+	public Duration authenticate() {
+		return authenticate;
+	}
+
+	public Duration connect() {
+		return connect;
+	}
+
+	public Duration total() {
+		return classPath.plus(spawn).plus(authenticate).plus(connect);
+	}
+
+	@Override
+	public String toString() {
+		return "StartupTimings [classPath=" + classPath.toMillis() + "ms, spawn=" + spawn.toMillis() + "ms, authenticate=" + authenticate.toMillis()
+				+ "ms, connect=" + connect.toMillis() + "ms, total=" + total().toMillis() + "ms]";
+	}
+}
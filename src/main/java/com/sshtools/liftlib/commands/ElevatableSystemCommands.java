@@ -1,18 +1,28 @@
 package com.sshtools.liftlib.commands;
 
+import com.sshtools.liftlib.ClosurePipe;
+import com.sshtools.liftlib.Codec;
 import com.sshtools.liftlib.ElevatedClosure;
 import com.sshtools.liftlib.Elevator;
 import com.sshtools.liftlib.Elevator.ReauthorizationPolicy;
 import com.sshtools.liftlib.OS;
+import com.sshtools.liftlib.impl.ChildProcesses;
+import com.sshtools.liftlib.impl.LocalClosurePipe;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.UncheckedIOException;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -22,7 +32,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import uk.co.bithatch.nativeimage.annotations.Serialization;
 
@@ -83,6 +96,22 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
         }
     }
 
+    @Override
+    public Stream<String> stream(String... args) throws IOException {
+        return LineStreams.of(new StreamOutput(this, args).start(), true);
+    }
+
+    @Override
+    public int consumeBytes(OutputChunkConsumer consumer, String... args) throws IOException {
+        try {
+            return new ConsumeBytes(this, consumer, args).call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        }  catch (Exception e) {
+            throw new IOException("Failed to run command. "  + e.getMessage(), e);
+        }
+    }
+
     @Override
     public int result(String... args) throws IOException {
         try {
@@ -118,7 +147,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
 
     @Override
     public PrintWriter pipe(Consumer<String> input, String... args) throws IOException {
-        throw new UnsupportedOperationException();
+        return toWriter(new LocalClosurePipe<>(new Pipe(this, input, args)));
     }
 
     @Override
@@ -131,6 +160,28 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
         return new LoggedSystemCommands(this);
     } 
 
+    private static PrintWriter toWriter(ClosurePipe<Integer> pipe) {
+        return new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(pipe.input(), 32768))) {
+            @Override
+            public void close() {
+                super.close();
+                try {
+                    pipe.result().get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted.", ie);
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) ee.getCause();
+                    else if (ee.getCause() instanceof IOException)
+                        throw new UncheckedIOException((IOException) ee.getCause());
+                    else
+                        throw new UncheckedIOException(new IOException("Failed to run command. " + ee.getCause().getMessage(), ee.getCause()));
+                }
+            }
+        };
+    }
+
     private final class PrvilegedSystemCommands extends AbstractSystemCommands {
         private SystemCommands delegate;
 
@@ -162,6 +213,11 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             }
         }
 
+        @Override
+        public Stream<String> stream(String... args) throws IOException {
+            return LineStreams.of(elevator.publisher(new StreamOutput(this, args)));
+        }
+
         @Override
         public Collection<String> silentOutput(String... args) {
             try {
@@ -203,7 +259,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
 
         @Override
         public PrintWriter pipe(Consumer<String> input, String... args) throws IOException {
-            throw new UnsupportedOperationException();
+            return toWriter(elevator.pipe(new Pipe(this, input, args)));
         }
 
         @Override
@@ -217,6 +273,17 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             }
         }
 
+        @Override
+        public int consumeBytes(OutputChunkConsumer consumer, String... args) throws IOException {
+            try {
+                return elevator.closure(new ConsumeBytes(this, consumer, args));
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            }  catch (Exception e) {
+                throw new IOException("Failed to run command. "  + e.getMessage(), e);
+            }
+        }
+
         @Override
         public void onLog(Consumer<String[]> commandLine) {
             delegate.onLog(commandLine);
@@ -289,6 +356,12 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             return delegate.silentOutput(args);
         }
 
+        @Override
+        public Stream<String> stream(String... args) throws IOException {
+            onLog.ifPresent(c -> c.accept(args));
+            return delegate.stream(args);
+        }
+
         @Override
         public void onLog(Consumer<String[]> onLog) {
             delegate.onLog(onLog);
@@ -305,6 +378,12 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             return delegate.consume(consumer, errConsumer, args);
         }
 
+        @Override
+        public int consumeBytes(OutputChunkConsumer consumer, String... args) throws IOException {
+            onLog.ifPresent(c -> c.accept(args));
+            return delegate.consumeBytes(consumer, args);
+        }
+
         @Override
         public <R extends Serializable> R task(ElevatedClosure<R, Serializable> task) throws Exception {
             return delegate.task(task);
@@ -424,8 +503,8 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             bldr.redirectOutput(stdout == null ? Redirect.INHERIT : stdout.toRedirect());
             if(dir != null)
                 bldr.directory(new File(dir));
-            var process = bldr.start();
-            var result = process.waitFor();
+            var process = ChildProcesses.start(bldr);
+            var result = ChildProcesses.waitFor(process);
             if (result != 0) {
                 throw new IOException(MessageFormat.format("Command exited with non-zero status {0}", result));
             }
@@ -457,8 +536,8 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             bldr.redirectError(stderr == null ? Redirect.INHERIT : stderr.toRedirect());
             bldr.redirectInput(stdin == null ? Redirect.INHERIT : stdin.toRedirect());
             bldr.redirectOutput(stdout == null ? Redirect.INHERIT : stdout.toRedirect());
-            var process = bldr.start();
-            return process.waitFor();
+            var process = ChildProcesses.start(bldr);
+            return ChildProcesses.waitFor(process);
         }
     }
 
@@ -490,7 +569,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             bldr.redirectInput(stdin == null ? Redirect.INHERIT : stdin.toRedirect());
             if(dir != null)
                 bldr.directory(new File(dir));
-            var process = bldr.start();
+            var process = ChildProcesses.start(bldr);
             String line = null;
             var reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
             var lines = new ArrayList<String>();
@@ -498,7 +577,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
                 lines.add(line);
             }
             try {
-                int ret = process.waitFor();
+                int ret = ChildProcesses.waitFor(process);
                 if (ret != 0)
                     throw new IllegalStateException("Unexpected return code. " + ret);
             } catch (InterruptedException ie) {
@@ -531,7 +610,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             bldr.redirectInput(stdin == null ? Redirect.INHERIT : stdin.toRedirect());
             if(dir != null)
                 bldr.directory(new File(dir));
-            var process = bldr.start();
+            var process = ChildProcesses.start(bldr);
             String line = null;
             var reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
             var lines = new ArrayList<String>();
@@ -539,7 +618,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
                 lines.add(line);
             }
             try {
-                process.waitFor();
+                ChildProcesses.waitFor(process);
             } catch (InterruptedException ie) {
                 throw new IOException("Interrupted.", ie);
             }
@@ -547,6 +626,142 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
         }
     }
 
+    @SuppressWarnings("serial")
+    @Serialization
+    public final static class StreamOutput extends AbstractProcessClosure<Integer, String[]> {
+
+        private final static int MAX_LINES = 256;
+        private final static int MAX_CHARS = 32768;
+
+        String[] args;
+
+        public StreamOutput() {
+        }
+
+        StreamOutput(SystemCommands parent, String... args) {
+            super(parent);
+            this.args = args;
+        }
+
+        Process start() throws IOException {
+            var bldr = new ProcessBuilder(args);
+            if (!env.isEmpty())
+                bldr.environment().putAll(env);
+            if(stderr == null) {
+            	bldr.redirectErrorStream(true);
+            }
+            else {
+            	bldr.redirectError(stderr.toRedirect());
+            }
+            bldr.redirectInput(stdin == null ? Redirect.INHERIT : stdin.toRedirect());
+            if(dir != null)
+                bldr.directory(new File(dir));
+            return ChildProcesses.start(bldr);
+        }
+
+        @Override
+        public Integer call(ElevatedClosure<Integer, String[]> proxy) throws Exception {
+            var process = start();
+            try(var reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                sendLines(reader, proxy);
+                int ret = ChildProcesses.waitFor(process);
+                if (ret != 0)
+                    throw new IllegalStateException("Unexpected return code. " + ret);
+                return ret;
+            } catch (InterruptedException ie) {
+                throw new IOException("Interrupted.", ie);
+            } finally {
+                if (process.isAlive())
+                    process.destroy();
+            }
+        }
+
+        static void sendLines(BufferedReader reader, ElevatedClosure<?, String[]> proxy) throws IOException {
+            var chunk = new ArrayList<String>();
+            var chars = 0;
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                chunk.add(line);
+                chars += line.length();
+                /* Send when full, or as soon as there is nothing more to read for now */
+                if (chunk.size() >= MAX_LINES || chars >= MAX_CHARS || !reader.ready()) {
+                    proxy.event(chunk.toArray(new String[0]));
+                    chunk.clear();
+                    chars = 0;
+                }
+            }
+            if (!chunk.isEmpty())
+                proxy.event(chunk.toArray(new String[0]));
+        }
+    }
+
+    @SuppressWarnings("serial")
+    @Serialization
+    public final static class Pipe extends AbstractProcessClosure<Integer, String[]> {
+
+        String[] args;
+        transient Consumer<String> consumer;
+
+        public Pipe() {
+        }
+
+        Pipe(SystemCommands parent, Consumer<String> consumer, String... args) {
+            super(parent);
+            this.consumer = consumer;
+            this.args = args;
+        }
+
+        @Override
+        public void event(String[] lines) {
+            for (var line : lines)
+                consumer.accept(line);
+        }
+
+        @Override
+        public Integer call(ElevatedClosure<Integer, String[]> proxy) throws Exception {
+            var bldr = new ProcessBuilder(args);
+            if (!env.isEmpty())
+                bldr.environment().putAll(env);
+            if(stderr == null) {
+            	bldr.redirectErrorStream(true);
+            }
+            else {
+            	bldr.redirectError(stderr.toRedirect());
+            }
+            if(dir != null)
+                bldr.directory(new File(dir));
+            var process = ChildProcesses.start(bldr);
+            var input = proxy.input();
+            var inputThread = new Thread(() -> {
+                try(var out = process.getOutputStream()) {
+                    input.transferTo(out);
+                } catch (IOException ioe) {
+                    /* Process exited without reading all of its input */
+                } finally {
+                    try {
+                        input.close();
+                    } catch (IOException ioe) {
+                    }
+                }
+            }, "PipeInput");
+            inputThread.setDaemon(true);
+            inputThread.start();
+            try(var reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                StreamOutput.sendLines(reader, proxy);
+                int ret = ChildProcesses.waitFor(process);
+                if (ret != 0)
+                    throw new IllegalStateException("Unexpected return code. " + ret);
+                return ret;
+            } catch (InterruptedException ie) {
+                throw new IOException("Interrupted.", ie);
+            } finally {
+                input.close();
+                if (process.isAlive())
+                    process.destroy();
+            }
+        }
+    }
+
     @SuppressWarnings("serial")
     @Serialization
     public final static class PipeTo extends AbstractProcessClosure<String[], Serializable> {
@@ -575,7 +790,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             else
             	bldr.redirectError(stderr == null ? Redirect.INHERIT : stderr.toRedirect());
 
-            var process = bldr.start();
+            var process = ChildProcesses.start(bldr);
             var output = new ArrayList<String>();
             try(var stdout = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
                 try (var stdin = process.getOutputStream()) {
@@ -588,7 +803,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
                 }
             }
             try {
-                int ret = process.waitFor();
+                int ret = ChildProcesses.waitFor(process);
                 if (ret != 0)
                     throw new IllegalStateException("Unexpected return code. " + ret);
             } catch (InterruptedException ie) {
@@ -641,7 +856,7 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
             
             Thread otherThread;
             
-            var process = bldr.start();
+            var process = ChildProcesses.start(bldr);
             if(hasOut) {
                 if(hasErr) {
                     otherThread = new Thread(() -> {
@@ -674,13 +889,382 @@ public class ElevatableSystemCommands extends SystemCommands.AbstractSystemComma
                 }
             }
             try {
-                return process.waitFor();
+                return ChildProcesses.waitFor(process);
             } catch (InterruptedException ie) {
                 throw new IOException("Interrupted.", ie);
             }
         }
     }
 
+    /**
+     * A chunk of raw output from a process, sent as an event by
+     * {@link ConsumeBytes}.
+     */
+    @SuppressWarnings("serial")
+    @Serialization
+    public final static class OutputChunk implements Serializable {
+
+        OutputSource source;
+        byte[] data;
+
+        public OutputChunk() {
+        }
+
+        OutputChunk(OutputSource source, byte[] data) {
+            this.source = source;
+            this.data = data;
+        }
+
+        public OutputSource source() {
+            return source;
+        }
+
+        public ByteBuffer data() {
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    @Serialization
+    public final static class ConsumeBytes extends AbstractProcessClosure<Integer, OutputChunk> {
+
+        private final static int CHUNK_SIZE = 32768;
+
+        String[] args;
+        transient OutputChunkConsumer consumer;
+
+        public ConsumeBytes() {
+        }
+
+        ConsumeBytes(SystemCommands parent, OutputChunkConsumer consumer, String... args) {
+            super(parent);
+            this.args = args;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public synchronized void event(OutputChunk event) {
+            /* Synchronized as when run locally, both outputs are read at once */
+            consumer.accept(event.source, event.data());
+        }
+
+        @Override
+        public Integer call(ElevatedClosure<Integer, OutputChunk> proxy) throws Exception {
+            var bldr = new ProcessBuilder(args);
+            if (!env.isEmpty())
+                bldr.environment().putAll(env);
+            if(dir != null)
+                bldr.directory(new File(dir));
+            var readErr = stderr == null || stderr == ProcessRedirect.PIPE;
+            if(!readErr)
+                bldr.redirectError(stderr.toRedirect());
+            bldr.redirectInput(stdin == null ? Redirect.INHERIT : stdin.toRedirect());
+
+            var process = ChildProcesses.start(bldr);
+            Thread errThread = null;
+            try {
+                if(readErr) {
+                    errThread = new Thread(() -> {
+                        try {
+                            read(process.getErrorStream(), OutputSource.STDERR, proxy);
+                        }
+                        catch(IOException | UncheckedIOException ioe) {
+                        }
+                    }, "ErrReader");
+                    errThread.start();
+                }
+                read(process.getInputStream(), OutputSource.STDOUT, proxy);
+                if(errThread != null)
+                    errThread.join();
+                return ChildProcesses.waitFor(process);
+            } catch (InterruptedException ie) {
+                throw new IOException("Interrupted.", ie);
+            } finally {
+                if (process.isAlive())
+                    process.destroy();
+            }
+        }
+
+        private static void read(InputStream in, OutputSource source, ElevatedClosure<Integer, OutputChunk> proxy) throws IOException {
+            var buf = new byte[CHUNK_SIZE];
+            try(in) {
+                int read;
+                while ((read = in.read(buf)) != -1) {
+                    if(read > 0)
+                        proxy.event(new OutputChunk(source, Arrays.copyOf(buf, read)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Base {@link Codec} for the built-in process closures, encoding the state
+     * common to all of them.
+     *
+     * @param <C> closure type
+     */
+    public static abstract class AbstractProcessClosureCodec<C extends AbstractProcessClosure<?, ?>> implements Codec<C> {
+
+        private final int id;
+        private final Class<C> type;
+        private final Supplier<C> factory;
+
+        protected AbstractProcessClosureCodec(int id, Class<C> type, Supplier<C> factory) {
+            this.id = id;
+            this.type = type;
+            this.factory = factory;
+        }
+
+        @Override
+        public final int id() {
+            return id;
+        }
+
+        @Override
+        public final Class<C> type() {
+            return type;
+        }
+
+        @Override
+        public final void encode(C value, DataOutput out) throws IOException {
+            out.writeInt(value.env == null ? 0 : value.env.size());
+            if(value.env != null) {
+                for(var en : value.env.entrySet()) {
+                    Codec.writeString(out, en.getKey());
+                    Codec.writeString(out, en.getValue());
+                }
+            }
+            writeRedirect(out, value.stdin);
+            writeRedirect(out, value.stdout);
+            writeRedirect(out, value.stderr);
+            Codec.writeString(out, value.dir);
+            encodeClosure(value, out);
+        }
+
+        @Override
+        public final C decode(DataInput in) throws IOException {
+            var value = factory.get();
+            var envSize = in.readInt();
+            value.env = new Env();
+            for(int i = 0 ; i < envSize ; i++) {
+                value.env.put(Codec.readString(in), Codec.readString(in));
+            }
+            value.stdin = readRedirect(in);
+            value.stdout = readRedirect(in);
+            value.stderr = readRedirect(in);
+            value.dir = Codec.readString(in);
+            decodeClosure(value, in);
+            return value;
+        }
+
+        protected abstract void encodeClosure(C value, DataOutput out) throws IOException;
+
+        protected abstract void decodeClosure(C value, DataInput in) throws IOException;
+
+        protected static void writeArgs(DataOutput out, String[] args) throws IOException {
+            out.writeInt(args.length);
+            for(var arg : args)
+                Codec.writeString(out, arg);
+        }
+
+        protected static String[] readArgs(DataInput in) throws IOException {
+            var args = new String[in.readInt()];
+            for(int i = 0 ; i < args.length ; i++)
+                args[i] = Codec.readString(in);
+            return args;
+        }
+
+        private static void writeRedirect(DataOutput out, ProcessRedirect redirect) throws IOException {
+            out.writeByte(redirect == null ? -1 : redirect.ordinal());
+        }
+
+        private static ProcessRedirect readRedirect(DataInput in) throws IOException {
+            var idx = in.readByte();
+            return idx == -1 ? null : ProcessRedirect.values()[idx];
+        }
+    }
+
+    public final static class BasicRunCodec extends AbstractProcessClosureCodec<BasicRun> {
+        public BasicRunCodec() {
+            super(100, BasicRun.class, BasicRun::new);
+        }
+
+        @Override
+        protected void encodeClosure(BasicRun value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+        }
+
+        @Override
+        protected void decodeClosure(BasicRun value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+        }
+    }
+
+    public final static class WithResultCodec extends AbstractProcessClosureCodec<WithResult> {
+        public WithResultCodec() {
+            super(101, WithResult.class, WithResult::new);
+        }
+
+        @Override
+        protected void encodeClosure(WithResult value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+        }
+
+        @Override
+        protected void decodeClosure(WithResult value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+        }
+    }
+
+    public final static class OutputCodec extends AbstractProcessClosureCodec<Output> {
+        public OutputCodec() {
+            super(102, Output.class, Output::new);
+        }
+
+        @Override
+        protected void encodeClosure(Output value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+        }
+
+        @Override
+        protected void decodeClosure(Output value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+        }
+    }
+
+    public final static class SilentOutputCodec extends AbstractProcessClosureCodec<SilentOutput> {
+        public SilentOutputCodec() {
+            super(103, SilentOutput.class, SilentOutput::new);
+        }
+
+        @Override
+        protected void encodeClosure(SilentOutput value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+        }
+
+        @Override
+        protected void decodeClosure(SilentOutput value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+        }
+    }
+
+    public final static class PipeToCodec extends AbstractProcessClosureCodec<PipeTo> {
+        public PipeToCodec() {
+            super(104, PipeTo.class, PipeTo::new);
+        }
+
+        @Override
+        protected void encodeClosure(PipeTo value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+            Codec.writeString(out, value.content);
+        }
+
+        @Override
+        protected void decodeClosure(PipeTo value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+            value.content = Codec.readString(in);
+        }
+    }
+
+    public final static class StreamOutputCodec extends AbstractProcessClosureCodec<StreamOutput> {
+        public StreamOutputCodec() {
+            super(106, StreamOutput.class, StreamOutput::new);
+        }
+
+        @Override
+        protected void encodeClosure(StreamOutput value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+        }
+
+        @Override
+        protected void decodeClosure(StreamOutput value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+        }
+    }
+
+    public final static class PipeCodec extends AbstractProcessClosureCodec<Pipe> {
+        public PipeCodec() {
+            super(109, Pipe.class, Pipe::new);
+        }
+
+        @Override
+        protected void encodeClosure(Pipe value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+        }
+
+        @Override
+        protected void decodeClosure(Pipe value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+        }
+    }
+
+    public final static class ConsumeBytesCodec extends AbstractProcessClosureCodec<ConsumeBytes> {
+        public ConsumeBytesCodec() {
+            super(107, ConsumeBytes.class, ConsumeBytes::new);
+        }
+
+        @Override
+        protected void encodeClosure(ConsumeBytes value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+        }
+
+        @Override
+        protected void decodeClosure(ConsumeBytes value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+        }
+    }
+
+    public final static class OutputChunkCodec implements Codec<OutputChunk> {
+
+        public OutputChunkCodec() {
+        }
+
+        @Override
+        public int id() {
+            return 108;
+        }
+
+        @Override
+        public Class<OutputChunk> type() {
+            return OutputChunk.class;
+        }
+
+        @Override
+        public void encode(OutputChunk value, DataOutput out) throws IOException {
+            out.writeByte(value.source.ordinal());
+            out.writeInt(value.data.length);
+            out.write(value.data);
+        }
+
+        @Override
+        public OutputChunk decode(DataInput in) throws IOException {
+            var source = OutputSource.values()[in.readByte()];
+            var data = new byte[in.readInt()];
+            in.readFully(data);
+            return new OutputChunk(source, data);
+        }
+    }
+
+    public final static class WithConsumeCodec extends AbstractProcessClosureCodec<WithConsume> {
+        public WithConsumeCodec() {
+            super(105, WithConsume.class, WithConsume::new);
+        }
+
+        @Override
+        protected void encodeClosure(WithConsume value, DataOutput out) throws IOException {
+            writeArgs(out, value.args);
+            out.writeBoolean(value.hasOut);
+            out.writeBoolean(value.hasErr);
+        }
+
+        @Override
+        protected void decodeClosure(WithConsume value, DataInput in) throws IOException {
+            value.args = readArgs(in);
+            value.hasOut = in.readBoolean();
+            value.hasErr = in.readBoolean();
+        }
+    }
+
     @Override
     public <R extends Serializable> R task(ElevatedClosure<R, Serializable> task) throws Exception {
         return task.call(task);
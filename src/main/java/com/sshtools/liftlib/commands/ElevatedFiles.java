@@ -0,0 +1,616 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.commands;
+
+import com.sshtools.liftlib.Codec;
+import com.sshtools.liftlib.ElevatedClosure;
+import com.sshtools.liftlib.IElevator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import uk.co.bithatch.nativeimage.annotations.Serialization;
+
+/**
+ * Read, write, copy and move files with the privileges of an {@link IElevator}.
+ * File content is streamed through the helper in fixed size chunks, with only
+ * a few chunks in flight at any time, so files of any size may be transferred
+ * without holding them in memory. Reads and writes may start at an offset, so
+ * an interrupted transfer can be resumed from where it got to.
+ */
+public class ElevatedFiles {
+
+	/**
+	 * Size of each chunk of file content.
+	 */
+	public final static int CHUNK_SIZE = 65536;
+
+	private final static int WINDOW = 4;
+
+	private final IElevator elevator;
+
+	public ElevatedFiles(IElevator elevator) {
+		this.elevator = elevator;
+	}
+
+	/**
+	 * Get the size of a file.
+	 *
+	 * @param path path of file
+	 * @return size, or -1 if the file does not exist
+	 * @throws IOException on error
+	 */
+	public long size(String path) throws IOException {
+		return call(new FileSize(path));
+	}
+
+	/**
+	 * Read a file, starting at an offset, writing its content to a stream.
+	 *
+	 * @param source path of file to read
+	 * @param offset offset to start reading at
+	 * @param target stream to write to
+	 * @return the offset reading stopped at, i.e. the size of the file
+	 * @throws IOException on error
+	 */
+	public long read(String source, long offset, OutputStream target) throws IOException {
+		var publisher = elevator.publisher(new ReadFile(source, offset));
+		var chunks = new ChunkSubscriber();
+		publisher.subscribe(chunks);
+		var position = offset;
+		try {
+			FileChunk chunk;
+			while ((chunk = chunks.take()) != null) {
+				if (chunk.offset != position)
+					throw new IOException("Expected chunk at " + position + ", but got one at " + chunk.offset);
+				target.write(chunk.data);
+				position += chunk.data.length;
+			}
+		} finally {
+			chunks.cancel();
+		}
+		return result(publisher.result(), "read");
+	}
+
+	/**
+	 * Write a stream to a file, starting at an offset. Any existing content after
+	 * the offset is replaced. With an offset of zero, the file is created or
+	 * truncated.
+	 *
+	 * @param source stream to read
+	 * @param target path of file to write
+	 * @param offset offset to start writing at, which must not be beyond the end
+	 *               of an existing file
+	 * @return the size of the file
+	 * @throws IOException on error
+	 */
+	public long write(InputStream source, String target, long offset) throws IOException {
+		var pipe = elevator.pipe(new WriteFile(target, offset));
+		try (var out = pipe.input()) {
+			source.transferTo(out);
+		} catch (IOException ioe) {
+			/* Prefer the reason the helper stopped reading, if that is why this failed */
+			if (!pipe.result().isCompletedExceptionally())
+				throw ioe;
+		}
+		return result(pipe.result(), "written");
+	}
+
+	/**
+	 * Write a local file to a file, starting at the same offset in both.
+	 *
+	 * @param source path of local file to read
+	 * @param target path of file to write
+	 * @param offset offset to start at
+	 * @return the size of the file
+	 * @throws IOException on error
+	 * @see #write(InputStream, String, long)
+	 */
+	public long write(Path source, String target, long offset) throws IOException {
+		var pipe = elevator.pipe(new WriteFile(target, offset));
+		try (var in = FileChannel.open(source, StandardOpenOption.READ); var out = pipe.input()) {
+			var channel = Channels.newChannel(out);
+			var size = in.size();
+			for (var position = offset; position < size; ) {
+				var n = in.transferTo(position, size - position, channel);
+				/* The file has shrunk since its size was read */
+				if (n <= 0)
+					break;
+				position += n;
+			}
+		} catch (IOException ioe) {
+			if (!pipe.result().isCompletedExceptionally())
+				throw ioe;
+		}
+		return result(pipe.result(), "written");
+	}
+
+	/**
+	 * Copy a file, starting at an offset. Data is copied directly between the
+	 * two files by the helper.
+	 *
+	 * @param source path of file to copy
+	 * @param target path of copy
+	 * @param offset offset to start copying at, zero to copy the whole file
+	 * @param replace whether to replace an existing target
+	 * @return the size of the copy
+	 * @throws IOException on error
+	 */
+	public long copy(String source, String target, long offset, boolean replace) throws IOException {
+		return call(new CopyFile(source, target, offset, replace));
+	}
+
+	/**
+	 * Move or rename a file. If the target is on another file system, the file is
+	 * copied then deleted.
+	 *
+	 * @param source path of file to move
+	 * @param target new path
+	 * @param replace whether to replace an existing target
+	 * @throws IOException on error
+	 */
+	public void move(String source, String target, boolean replace) throws IOException {
+		call(new MoveFile(source, target, replace));
+	}
+
+	private <S extends Serializable> S call(ElevatedClosure<S, Serializable> closure) throws IOException {
+		try {
+			return elevator.closure(closure);
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Failed to run file operation. " + e.getMessage(), e);
+		}
+	}
+
+	private static long result(Future<Long> result, String action) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for file to be " + action + ".");
+		} catch (ExecutionException ee) {
+			var cause = ee.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else
+				throw new IOException("File could not be " + action + ". " + cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Receives chunks from a publisher, requesting more only as they are taken.
+	 */
+	private final static class ChunkSubscriber implements Flow.Subscriber<FileChunk> {
+		private final static Object END = new Object();
+
+		private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+		private volatile Flow.Subscription subscription;
+		private boolean done;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(WINDOW);
+		}
+
+		@Override
+		public void onNext(FileChunk item) {
+			queue.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			queue.add(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			queue.add(END);
+		}
+
+		FileChunk take() throws IOException {
+			Object next;
+			try {
+				next = queue.take();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for file content.");
+			}
+			if (next == END) {
+				done = true;
+				return null;
+			} else if (next instanceof Throwable) {
+				done = true;
+				var error = (Throwable) next;
+				if (error instanceof IOException)
+					throw (IOException) error;
+				else if (error instanceof RuntimeException)
+					throw (RuntimeException) error;
+				else
+					throw new IOException("Failed to read file. " + error.getMessage(), error);
+			}
+			subscription.request(1);
+			return (FileChunk) next;
+		}
+
+		void cancel() {
+			if (!done && subscription != null)
+				subscription.cancel();
+		}
+	}
+
+	/**
+	 * A chunk of file content, and the offset in the file it came from.
+	 */
+	@SuppressWarnings("serial")
+	@Serialization
+	public final static class FileChunk implements Serializable {
+
+		private final long offset;
+		private final byte[] data;
+
+		public FileChunk(long offset, byte[] data) {
+			this.offset = offset;
+			this.data = data;
+		}
+
+		public long offset() {
+			return offset;
+		}
+
+		public ByteBuffer data() {
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Serialization
+	public final static class FileSize implements ElevatedClosure<Long, Serializable> {
+
+		private final String path;
+
+		public FileSize(String path) {
+			this.path = path;
+		}
+
+		@Override
+		public Long call(ElevatedClosure<Long, Serializable> proxy) throws Exception {
+			var file = Path.of(path);
+			return Files.exists(file) ? Files.size(file) : -1;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Serialization
+	public final static class ReadFile implements ElevatedClosure<Long, FileChunk> {
+
+		private final String path;
+		private final long offset;
+
+		public ReadFile(String path, long offset) {
+			this.path = path;
+			this.offset = offset;
+		}
+
+		@Override
+		public Long call(ElevatedClosure<Long, FileChunk> proxy) throws Exception {
+			try (var channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+				var position = offset;
+				while (true) {
+					var data = new byte[CHUNK_SIZE];
+					var n = channel.read(ByteBuffer.wrap(data), position);
+					if (n <= 0)
+						break;
+					proxy.event(new FileChunk(position, n == data.length ? data : Arrays.copyOf(data, n)));
+					position += n;
+				}
+				return position;
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Serialization
+	public final static class WriteFile implements ElevatedClosure<Long, Serializable> {
+
+		private final String path;
+		private final long offset;
+
+		public WriteFile(String path, long offset) {
+			this.path = path;
+			this.offset = offset;
+		}
+
+		@Override
+		public Long call(ElevatedClosure<Long, Serializable> proxy) throws Exception {
+			var options = offset == 0
+					? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING }
+					: new OpenOption[] { StandardOpenOption.WRITE };
+			try (var input = Channels.newChannel(proxy.input());
+					var channel = FileChannel.open(Path.of(path), options)) {
+				return transfer(channel, offset, (position, count) -> channel.transferFrom(input, position, count));
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Serialization
+	public final static class CopyFile implements ElevatedClosure<Long, Serializable> {
+
+		private final String source;
+		private final String target;
+		private final long offset;
+		private final boolean replace;
+
+		public CopyFile(String source, String target, long offset, boolean replace) {
+			this.source = source;
+			this.target = target;
+			this.offset = offset;
+			this.replace = replace;
+		}
+
+		@Override
+		public Long call(ElevatedClosure<Long, Serializable> proxy) throws Exception {
+			OpenOption[] options;
+			if (offset > 0)
+				options = new OpenOption[] { StandardOpenOption.WRITE };
+			else if (replace)
+				options = new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING };
+			else
+				options = new OpenOption[] { StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE };
+			try (var in = FileChannel.open(Path.of(source), StandardOpenOption.READ);
+					var out = FileChannel.open(Path.of(target), options)) {
+				var size = in.size();
+				return transfer(out, offset, (position, count) -> position >= size ? 0 : in.transferTo(position, Math.min(count, size - position), out));
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Serialization
+	public final static class MoveFile implements ElevatedClosure<Serializable, Serializable> {
+
+		private final String source;
+		private final String target;
+		private final boolean replace;
+
+		public MoveFile(String source, String target, boolean replace) {
+			this.source = source;
+			this.target = target;
+			this.replace = replace;
+		}
+
+		@Override
+		public Serializable call(ElevatedClosure<Serializable, Serializable> proxy) throws Exception {
+			if (replace)
+				Files.move(Path.of(source), Path.of(target), StandardCopyOption.REPLACE_EXISTING);
+			else
+				Files.move(Path.of(source), Path.of(target));
+			return null;
+		}
+	}
+
+	@FunctionalInterface
+	private interface Transfer {
+		long transfer(long position, long count) throws IOException;
+	}
+
+	/**
+	 * Transfer chunks into a file until the source is exhausted, starting at an
+	 * offset and discarding anything already after it.
+	 */
+	private static long transfer(FileChannel channel, long offset, Transfer transfer) throws IOException {
+		if (offset > channel.size())
+			throw new IOException("Cannot resume at " + offset + ", the file is only " + channel.size() + " bytes.");
+		channel.truncate(offset);
+		var position = offset;
+		long n;
+		while ((n = transfer.transfer(position, CHUNK_SIZE)) > 0)
+			position += n;
+		channel.force(false);
+		return position;
+	}
+
+	public final static class FileChunkCodec implements Codec<FileChunk> {
+
+		public FileChunkCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 113;
+		}
+
+		@Override
+		public Class<FileChunk> type() {
+			return FileChunk.class;
+		}
+
+		@Override
+		public void encode(FileChunk value, DataOutput out) throws IOException {
+			out.writeLong(value.offset);
+			out.writeInt(value.data.length);
+			out.write(value.data);
+		}
+
+		@Override
+		public FileChunk decode(DataInput in) throws IOException {
+			var offset = in.readLong();
+			var data = new byte[in.readInt()];
+			in.readFully(data);
+			return new FileChunk(offset, data);
+		}
+	}
+
+	public final static class FileSizeCodec implements Codec<FileSize> {
+
+		public FileSizeCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 114;
+		}
+
+		@Override
+		public Class<FileSize> type() {
+			return FileSize.class;
+		}
+
+		@Override
+		public void encode(FileSize value, DataOutput out) throws IOException {
+			Codec.writeString(out, value.path);
+		}
+
+		@Override
+		public FileSize decode(DataInput in) throws IOException {
+			return new FileSize(Codec.readString(in));
+		}
+	}
+
+	public final static class ReadFileCodec implements Codec<ReadFile> {
+
+		public ReadFileCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 115;
+		}
+
+		@Override
+		public Class<ReadFile> type() {
+			return ReadFile.class;
+		}
+
+		@Override
+		public void encode(ReadFile value, DataOutput out) throws IOException {
+			Codec.writeString(out, value.path);
+			out.writeLong(value.offset);
+		}
+
+		@Override
+		public ReadFile decode(DataInput in) throws IOException {
+			return new ReadFile(Codec.readString(in), in.readLong());
+		}
+	}
+
+	public final static class WriteFileCodec implements Codec<WriteFile> {
+
+		public WriteFileCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 116;
+		}
+
+		@Override
+		public Class<WriteFile> type() {
+			return WriteFile.class;
+		}
+
+		@Override
+		public void encode(WriteFile value, DataOutput out) throws IOException {
+			Codec.writeString(out, value.path);
+			out.writeLong(value.offset);
+		}
+
+		@Override
+		public WriteFile decode(DataInput in) throws IOException {
+			return new WriteFile(Codec.readString(in), in.readLong());
+		}
+	}
+
+	public final static class CopyFileCodec implements Codec<CopyFile> {
+
+		public CopyFileCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 117;
+		}
+
+		@Override
+		public Class<CopyFile> type() {
+			return CopyFile.class;
+		}
+
+		@Override
+		public void encode(CopyFile value, DataOutput out) throws IOException {
+			Codec.writeString(out, value.source);
+			Codec.writeString(out, value.target);
+			out.writeLong(value.offset);
+			out.writeBoolean(value.replace);
+		}
+
+		@Override
+		public CopyFile decode(DataInput in) throws IOException {
+			return new CopyFile(Codec.readString(in), Codec.readString(in), in.readLong(), in.readBoolean());
+		}
+	}
+
+	public final static class MoveFileCodec implements Codec<MoveFile> {
+
+		public MoveFileCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 118;
+		}
+
+		@Override
+		public Class<MoveFile> type() {
+			return MoveFile.class;
+		}
+
+		@Override
+		public void encode(MoveFile value, DataOutput out) throws IOException {
+			Codec.writeString(out, value.source);
+			Codec.writeString(out, value.target);
+			out.writeBoolean(value.replace);
+		}
+
+		@Override
+		public MoveFile decode(DataInput in) throws IOException {
+			return new MoveFile(Codec.readString(in), Codec.readString(in), in.readBoolean());
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package com.sshtools.liftlib.commands;
 
+import com.sshtools.liftlib.Codec;
 import com.sshtools.liftlib.ElevatedClosure;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.prefs.Preferences;
 
@@ -191,4 +195,95 @@ public class ElevatedPreferences {
 		}
 
 	}
+
+	public final static class GetValueCodec implements Codec<GetValue> {
+
+		public GetValueCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 110;
+		}
+
+		@Override
+		public Class<GetValue> type() {
+			return GetValue.class;
+		}
+
+		@Override
+		public void encode(GetValue value, DataOutput out) throws IOException {
+			out.writeBoolean(value.system);
+			Codec.writeString(out, value.pathName);
+			Codec.writeString(out, value.key);
+			Codec.writeString(out, value.defaultValue);
+		}
+
+		@Override
+		public GetValue decode(DataInput in) throws IOException {
+			return new GetValue(in.readBoolean(), Codec.readString(in), Codec.readString(in), Codec.readString(in));
+		}
+	}
+
+	public final static class RemoveKeyCodec implements Codec<RemoveKey> {
+
+		public RemoveKeyCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 111;
+		}
+
+		@Override
+		public Class<RemoveKey> type() {
+			return RemoveKey.class;
+		}
+
+		@Override
+		public void encode(RemoveKey value, DataOutput out) throws IOException {
+			out.writeBoolean(value.system);
+			Codec.writeString(out, value.pathName);
+			Codec.writeString(out, value.key);
+		}
+
+		@Override
+		public RemoveKey decode(DataInput in) throws IOException {
+			return new RemoveKey(in.readBoolean(), Codec.readString(in), Codec.readString(in));
+		}
+	}
+
+	public final static class PutValueCodec implements Codec<PutValue> {
+
+		public PutValueCodec() {
+		}
+
+		@Override
+		public int id() {
+			return 112;
+		}
+
+		@Override
+		public Class<PutValue> type() {
+			return PutValue.class;
+		}
+
+		@Override
+		public void encode(PutValue value, DataOutput out) throws IOException {
+			out.writeBoolean(value.system);
+			Codec.writeString(out, value.pathName);
+			Codec.writeString(out, value.key);
+			out.writeByte(value.type.ordinal());
+			Codec.writeValue(out, value.value);
+		}
+
+		@Override
+		public PutValue decode(DataInput in) throws IOException {
+			var system = in.readBoolean();
+			var pathName = Codec.readString(in);
+			var key = Codec.readString(in);
+			var type = PrefType.values()[in.readByte()];
+			return new PutValue(system, pathName, key, Codec.readValue(in), type);
+		}
+	}
 }
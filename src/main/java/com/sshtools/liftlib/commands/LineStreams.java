@@ -0,0 +1,231 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.commands;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.sshtools.liftlib.ClosurePublisher;
+
+/**
+ * Lazily consumed streams of the lines output by a process, either read
+ * directly from a local process, or received in chunks from a closure run by
+ * the helper. Either way, only a few chunks of lines are held in memory at any
+ * time, and closing the stream stops the process (or, for a helper, stops
+ * sending any more of its output).
+ */
+final class LineStreams {
+
+	/**
+	 * How many chunks of lines may be requested from the helper ahead of those
+	 * being consumed.
+	 */
+	private final static int PREFETCH = 4;
+
+	private LineStreams() {
+	}
+
+	/**
+	 * Stream the output of a local process.
+	 *
+	 * @param process process
+	 * @param checkExit whether to throw if the process exits with a non-zero
+	 *                  status
+	 * @return lines
+	 */
+	static Stream<String> of(Process process, boolean checkExit) {
+		var lines = new ProcessLines(process, checkExit);
+		return stream(lines).onClose(lines::close);
+	}
+
+	/**
+	 * Stream the chunks of lines published by a closure.
+	 *
+	 * @param publisher publisher
+	 * @return lines
+	 */
+	static Stream<String> of(ClosurePublisher<?, String[]> publisher) {
+		var lines = new ChunkLines();
+		publisher.subscribe(lines);
+		return stream(lines).onClose(lines::close);
+	}
+
+	private static Stream<String> stream(Iterator<String> it) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	private final static class ProcessLines implements Iterator<String> {
+		private final Process process;
+		private final BufferedReader reader;
+		private final boolean checkExit;
+		private String line;
+		private boolean done;
+
+		private ProcessLines(Process process, boolean checkExit) {
+			this.process = process;
+			this.checkExit = checkExit;
+			reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (line == null && !done) {
+				try {
+					line = reader.readLine();
+					if (line == null) {
+						done = true;
+						int ret = process.waitFor();
+						if (checkExit && ret != 0)
+							throw new IllegalStateException("Unexpected return code. " + ret);
+					}
+				} catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				} catch (InterruptedException ie) {
+					throw new UncheckedIOException(new InterruptedIOException("Interrupted."));
+				}
+			}
+			return line != null;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			var next = line;
+			line = null;
+			return next;
+		}
+
+		private void close() {
+			done = true;
+			if (process.isAlive())
+				process.destroy();
+			try {
+				reader.close();
+			} catch (IOException ioe) {
+			}
+		}
+	}
+
+	private final static class ChunkLines implements Iterator<String>, Flow.Subscriber<String[]> {
+		private final static Object END = new Object();
+
+		private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+		private Flow.Subscription subscription;
+		private boolean cancelled;
+		private String[] chunk;
+		private int index;
+		private boolean done;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			synchronized (this) {
+				this.subscription = subscription;
+				if (cancelled) {
+					subscription.cancel();
+					return;
+				}
+			}
+			subscription.request(PREFETCH);
+		}
+
+		@Override
+		public void onNext(String[] item) {
+			queue.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			queue.add(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			queue.add(END);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (chunk == null || index == chunk.length) {
+				if (done)
+					return false;
+				if (chunk != null) {
+					chunk = null;
+					subscription().request(1);
+				}
+				Object next;
+				try {
+					next = queue.take();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new UncheckedIOException(new InterruptedIOException("Interrupted."));
+				}
+				if (next == END) {
+					done = true;
+				} else if (next instanceof Throwable) {
+					done = true;
+					var t = (Throwable) next;
+					if (t instanceof RuntimeException)
+						throw (RuntimeException) t;
+					else if (t instanceof IOException)
+						throw new UncheckedIOException((IOException) t);
+					else
+						throw new UncheckedIOException(new IOException("Failed to run command. " + t.getMessage(), t));
+				} else {
+					chunk = (String[]) next;
+					index = 0;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return chunk[index++];
+		}
+
+		private synchronized Flow.Subscription subscription() {
+			return subscription;
+		}
+
+		private void close() {
+			Flow.Subscription toCancel;
+			synchronized (this) {
+				cancelled = true;
+				toCancel = subscription;
+			}
+			if (toCancel != null && !done)
+				toCancel.cancel();
+			done = true;
+			queue.clear();
+		}
+	}
+}
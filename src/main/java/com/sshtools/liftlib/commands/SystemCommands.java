@@ -7,12 +7,15 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface SystemCommands {
     
@@ -33,6 +36,28 @@ public interface SystemCommands {
         }
     }
 
+    /**
+     * Which of a process's output streams a chunk of output came from.
+     */
+    public enum OutputSource {
+        STDOUT, STDERR
+    }
+
+    /**
+     * Receives raw chunks of a command's output, see
+     * {@link SystemCommands#consumeBytes(OutputChunkConsumer, String...)}.
+     */
+    @FunctionalInterface
+    public interface OutputChunkConsumer {
+        /**
+         * A chunk of output has been read.
+         *
+         * @param source which output it was read from
+         * @param chunk the bytes read, which must not be retained after returning
+         */
+        void accept(OutputSource source, ByteBuffer chunk);
+    }
+
     public abstract class AbstractSystemCommands implements SystemCommands {
         private Map<String, String> env = new HashMap<>();
         private Optional<ProcessRedirect> stdin;
@@ -112,6 +137,20 @@ public interface SystemCommands {
 
     void onLog(Consumer<String[]> onLog);
 
+    /**
+     * Start a command and return a writer to its standard input, passing each
+     * line it outputs to <code>input</code> as it arrives. Output is buffered,
+     * so call {@link PrintWriter#flush()} when the command must see what has
+     * been written so far. Closing the writer ends the command's input and
+     * waits for it to exit, throwing an {@link IllegalStateException} if it
+     * returned a non-zero code. Privileged commands only buffer a limited amount
+     * of input in the helper, so writes block if the command falls behind.
+     *
+     * @param input consumer of each line of output
+     * @param args command and arguments
+     * @return writer to standard input
+     * @throws IOException if the command could not be started
+     */
     PrintWriter pipe(Consumer<String> input, String... args) throws IOException;
 
     SystemCommands privileged();
@@ -144,6 +183,25 @@ public interface SystemCommands {
 
     Collection<String> silentOutput(String... args);
 
+    /**
+     * Run a command and stream its output a line at a time, as it is produced.
+     * Unlike {@link #output(String...)}, the output is never held in memory all at
+     * once, so this is suitable for commands that produce a lot of it. The stream
+     * should be closed if not read to the end, which will stop the command (or
+     * for a privileged command, stop any more of its output being sent).
+     * <p>
+     * The default implementation just streams the result of
+     * {@link #output(String...)}, so does hold all of the output in memory.
+     * Implementations should override it.
+     *
+     * @param args command and arguments
+     * @return lines of output
+     * @throws IOException on error starting the command
+     */
+    default Stream<String> stream(String... args) throws IOException {
+        return output(args).stream();
+    }
+
     int result(String... args) throws IOException;
 
     Collection<String> pipeTo(String content, String... args) throws IOException;
@@ -154,6 +212,37 @@ public interface SystemCommands {
 
     int consume(Consumer<String> consumer, Consumer<String> errConsumer, String... args) throws IOException;
 
+    /**
+     * Run a command, passing its output to the consumer as raw bytes, in chunks
+     * tagged with the stream they were read from. Nothing is decoded or split
+     * into lines, so this suits binary or very large output. Standard error is
+     * passed on too, unless it has been redirected with
+     * {@link #stderr(ProcessRedirect)}. Chunks are passed on one at a time, in
+     * the order they were read.
+     * <p>
+     * The default implementation is built on
+     * {@link #consume(Consumer, Consumer, String...)}, so output is in fact
+     * decoded and split into lines, then re-encoded with each line terminated
+     * by a newline. Implementations should override it.
+     *
+     * @param consumer consumer
+     * @param args command and arguments
+     * @return exit status
+     * @throws IOException on error
+     */
+    default int consumeBytes(OutputChunkConsumer consumer, String... args) throws IOException {
+        var lock = new Object();
+        return consume(line -> {
+            synchronized (lock) {
+                consumer.accept(OutputSource.STDOUT, ByteBuffer.wrap((line + "\n").getBytes(Charset.defaultCharset())));
+            }
+        }, line -> {
+            synchronized (lock) {
+                consumer.accept(OutputSource.STDERR, ByteBuffer.wrap((line + "\n").getBytes(Charset.defaultCharset())));
+            }
+        }, args);
+    }
+
     <R extends Serializable> R task(ElevatedClosure<R, Serializable> task) throws Exception;
 
 }
@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.ClosurePublisher;
+import com.sshtools.liftlib.ElevatedClosure;
+
+/**
+ * Subscription handling common to all {@link ClosurePublisher}s. Sub-classes
+ * start the closure, pass on demand as it is requested, and feed events and the
+ * result back using {@link #emit(Collection)} and {@link #complete(Object, Throwable)}.
+ * All signals to the subscriber are made one at a time on the executor.
+ *
+ * @param <S> return type
+ * @param <E> event type
+ */
+public abstract class AbstractClosurePublisher<S extends Serializable, E extends Serializable> implements ClosurePublisher<S, E> {
+	private final static Logger LOG = Logger.getLogger(AbstractClosurePublisher.class.getSimpleName());
+
+	protected final ElevatedClosure<S, E> closure;
+	protected final Executor executor;
+
+	private final CompletableFuture<S> result = new CompletableFuture<>();
+	private final Queue<E> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicInteger wip = new AtomicInteger();
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+	private Subscriber<? super E> subscriber;
+	private volatile boolean cancelled;
+	private volatile Throwable invalid;
+
+	protected AbstractClosurePublisher(ElevatedClosure<S, E> closure, Executor executor) {
+		this.closure = closure;
+		this.executor = executor;
+	}
+
+	@Override
+	public final CompletableFuture<S> result() {
+		return result;
+	}
+
+	@Override
+	public final void subscribe(Subscriber<? super E> subscriber) {
+		Objects.requireNonNull(subscriber);
+		if (!subscribed.compareAndSet(false, true)) {
+			executor.execute(() -> {
+				subscriber.onSubscribe(new Subscription() {
+					@Override
+					public void request(long n) {
+					}
+
+					@Override
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("Only a single subscriber is supported."));
+			});
+			return;
+		}
+		this.subscriber = subscriber;
+		executor.execute(() -> {
+			subscriber.onSubscribe(new Subscription() {
+				@Override
+				public void request(long n) {
+					if (cancelled)
+						return;
+					if (n <= 0) {
+						invalid = new IllegalArgumentException("Requested events must be positive (§3.9).");
+						drain();
+						return;
+					}
+					demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+					onRequest(n);
+					drain();
+				}
+
+				@Override
+				public void cancel() {
+					if (!cancelled) {
+						cancelled = true;
+						queue.clear();
+						onCancel();
+					}
+				}
+			});
+			try {
+				start();
+			} catch (Exception e) {
+				complete(null, e);
+			}
+		});
+	}
+
+	/**
+	 * Queue events for delivery to the subscriber.
+	 *
+	 * @param events events
+	 */
+	public final void emit(Collection<E> events) {
+		if (!cancelled) {
+			queue.addAll(events);
+			drain();
+		}
+	}
+
+	/**
+	 * Complete the closure. The subscriber will be completed once all queued
+	 * events have been delivered.
+	 *
+	 * @param value value returned by the closure
+	 * @param error error thrown by the closure, or <code>null</code>
+	 */
+	public final void complete(S value, Throwable error) {
+		if (error == null)
+			result.complete(value);
+		else
+			result.completeExceptionally(error);
+		drain();
+	}
+
+	/**
+	 * Get whether the subscriber has cancelled, or has been completed.
+	 *
+	 * @return cancelled
+	 */
+	protected final boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Start running the closure. Called once, on the executor, after the
+	 * subscriber has been given its subscription.
+	 *
+	 * @throws Exception on error
+	 */
+	protected abstract void start() throws Exception;
+
+	/**
+	 * The subscriber has requested more events.
+	 *
+	 * @param n number of events, {@link Long#MAX_VALUE} for unlimited
+	 */
+	protected abstract void onRequest(long n);
+
+	/**
+	 * The subscriber no longer wants any events. Any further events should be
+	 * discarded without blocking the closure.
+	 */
+	protected abstract void onCancel();
+
+	private void drain() {
+		if (wip.getAndIncrement() == 0)
+			executor.execute(this::drainLoop);
+	}
+
+	private void drainLoop() {
+		do {
+			while (!cancelled) {
+				if (invalid != null) {
+					cancelled = true;
+					queue.clear();
+					onCancel();
+					subscriber.onError(invalid);
+					break;
+				}
+				var current = demand.get();
+				if (current > 0) {
+					var event = queue.poll();
+					if (event != null) {
+						if (current != Long.MAX_VALUE)
+							demand.decrementAndGet();
+						try {
+							subscriber.onNext(event);
+						} catch (RuntimeException re) {
+							LOG.log(Level.WARNING, "Subscriber failed, cancelling.", re);
+							cancelled = true;
+							queue.clear();
+							onCancel();
+						}
+						continue;
+					}
+				}
+				if (queue.isEmpty() && result.isDone()) {
+					cancelled = true;
+					try {
+						result.join();
+						subscriber.onComplete();
+					} catch (CompletionException ce) {
+						subscriber.onError(ce.getCause() == null ? ce : ce.getCause());
+					}
+				}
+				break;
+			}
+		} while (wip.decrementAndGet() != 0);
+	}
+}
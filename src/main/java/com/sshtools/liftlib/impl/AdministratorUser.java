@@ -0,0 +1,146 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.OS;
+
+/**
+ * Finds the name of the user with ID 0 on Unix-like systems. This is looked up
+ * once, the first time it is needed (or in the background, if
+ * {@link #prefetch()} is called first), rather than when {@link OS} is loaded.
+ * <p>
+ * If this JVM is itself running as user 0, its own user name is used. Failing
+ * that, <code>/etc/passwd</code> is searched, and only if that cannot be read
+ * is the <code>id</code> command run.
+ */
+public final class AdministratorUser {
+	final static Logger LOG = Logger.getLogger(AdministratorUser.class.getSimpleName());
+
+	private final static AtomicReference<CompletableFuture<Optional<String>>> LOOKUP = new AtomicReference<>();
+
+	private AdministratorUser() {
+	}
+
+	/**
+	 * Get the administrator user name, waiting for it to be looked up if need
+	 * be.
+	 *
+	 * @return user name, or empty if it could not be found
+	 */
+	public static Optional<String> get() {
+		var lookup = LOOKUP.get();
+		if (lookup == null) {
+			var future = new CompletableFuture<Optional<String>>();
+			if (LOOKUP.compareAndSet(null, future)) {
+				complete(future);
+				return future.join();
+			}
+			lookup = LOOKUP.get();
+		}
+		return lookup.join();
+	}
+
+	/**
+	 * Start looking up the administrator user name in the background, if it
+	 * has not already been looked up.
+	 *
+	 * @return future user name, or empty if it could not be found
+	 */
+	public static CompletableFuture<Optional<String>> prefetch() {
+		var future = new CompletableFuture<Optional<String>>();
+		if (LOOKUP.compareAndSet(null, future)) {
+			var thread = new Thread(() -> complete(future), "LiftLibAdministratorLookup");
+			thread.setDaemon(true);
+			thread.start();
+			return future;
+		}
+		return LOOKUP.get();
+	}
+
+	private static void complete(CompletableFuture<Optional<String>> future) {
+		var started = System.nanoTime();
+		Optional<String> name;
+		try {
+			name = OS.isUnixLike() ? lookup() : Optional.empty();
+		} catch (RuntimeException re) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "Failed to find administrator user.", re);
+			name = Optional.empty();
+		}
+		future.complete(name);
+		Spans.osInitialized(started);
+	}
+
+	private static Optional<String> lookup() {
+		var name = fromUnixSystem();
+		if (name.isEmpty())
+			name = fromPasswd();
+		if (name.isEmpty())
+			name = fromId();
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine(String.format("Administrator user is %s", name.orElse("unknown")));
+		return name;
+	}
+
+	private static Optional<String> fromUnixSystem() {
+		/* Reflection, as jdk.security.auth is optional (and absent on some platforms) */
+		try {
+			var clazz = Class.forName("com.sun.security.auth.module.UnixSystem");
+			var system = clazz.getConstructor().newInstance();
+			if (((Number) clazz.getMethod("getUid").invoke(system)).longValue() == 0)
+				return Optional.ofNullable((String) clazz.getMethod("getUsername").invoke(system));
+		} catch (Exception | LinkageError e) {
+		}
+		return Optional.empty();
+	}
+
+	private static Optional<String> fromPasswd() {
+		try (var lines = Files.lines(Paths.get("/etc/passwd"), StandardCharsets.UTF_8)) {
+			return lines.filter(l -> !l.startsWith("#") && !l.startsWith("+") && !l.startsWith("-"))
+					.map(l -> l.split(":"))
+					.filter(f -> f.length > 2 && f[2].equals("0") && !f[0].isEmpty())
+					.map(f -> f[0])
+					.findFirst();
+		} catch (Exception e) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "Failed to read /etc/passwd.", e);
+			return Optional.empty();
+		}
+	}
+
+	private static Optional<String> fromId() {
+		try {
+			var p = new ProcessBuilder("id", "0").start();
+			try (var rdr = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+				var parts = rdr.readLine().split("\\s+")[0].substring(6);
+				return Optional.of(parts.substring(0, parts.length() - 1));
+			}
+		} catch (Exception e) {
+			return Optional.empty();
+		}
+	}
+}
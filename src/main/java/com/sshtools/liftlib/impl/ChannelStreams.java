@@ -0,0 +1,80 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stream adapters for channels that, unlike those from
+ * {@link java.nio.channels.Channels}, do not synchronize on the channel's
+ * blocking lock. This allows one thread to be blocked reading while others
+ * write, which a multiplexed connection requires.
+ */
+public final class ChannelStreams {
+
+	private ChannelStreams() {
+	}
+
+	public static InputStream input(ReadableByteChannel channel) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				var b = new byte[1];
+				var r = read(b, 0, 1);
+				return r == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	public static OutputStream output(WritableByteChannel channel) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				var buf = ByteBuffer.wrap(b, off, len);
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+}
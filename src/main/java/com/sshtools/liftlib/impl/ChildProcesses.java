@@ -0,0 +1,161 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts child processes on behalf of closures. The helper opens a
+ * {@link Scope} for each closure it runs, and processes started on a thread
+ * with an open scope are tracked by it, so the helper can destroy them (and
+ * any of their descendants) when the closure that started them is cancelled,
+ * or its caller goes away. No more than <code>liftlib.maxProcesses</code> such
+ * processes may be running at once, and any further processes wait to start
+ * until another exits.
+ * <p>
+ * Anywhere else, for example commands run directly in the calling application,
+ * processes are just started, without any limit or tracking.
+ */
+public final class ChildProcesses {
+
+	private final static int MAX_PROCESSES = Integer.getInteger("liftlib.maxProcesses",
+			Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+	private final static long DESTROY_TIMEOUT = 5;
+
+	private final static Semaphore PERMITS = new Semaphore(MAX_PROCESSES, true);
+	private final static ThreadLocal<Scope> SCOPE = new ThreadLocal<>();
+
+	/**
+	 * The processes started by a single closure.
+	 */
+	public final static class Scope implements AutoCloseable {
+		private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+		private final Scope was;
+		private volatile boolean destroyed;
+
+		private Scope(Scope was) {
+			this.was = was;
+		}
+
+		/**
+		 * Destroy every process started in this scope that is still running, and
+		 * any started after this.
+		 */
+		public void destroy() {
+			destroyed = true;
+			processes.forEach(ChildProcesses::destroy);
+		}
+
+		@Override
+		public void close() {
+			if (was == null)
+				SCOPE.remove();
+			else
+				SCOPE.set(was);
+		}
+	}
+
+	private ChildProcesses() {
+	}
+
+	/**
+	 * Track processes started by the current thread until the returned scope is
+	 * closed.
+	 *
+	 * @return scope
+	 */
+	public static Scope open() {
+		var scope = new Scope(SCOPE.get());
+		SCOPE.set(scope);
+		return scope;
+	}
+
+	/**
+	 * Start a process. If the current thread has an open {@link Scope}, first wait
+	 * if the maximum number are already running.
+	 *
+	 * @param builder process builder
+	 * @return process
+	 * @throws IOException on error
+	 */
+	public static Process start(ProcessBuilder builder) throws IOException {
+		var scope = SCOPE.get();
+		if (scope == null)
+			return builder.start();
+		try {
+			PERMITS.acquire();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to start process.");
+		}
+		Process process;
+		try {
+			process = builder.start();
+		} catch (IOException | RuntimeException e) {
+			PERMITS.release();
+			throw e;
+		}
+		process.onExit().thenRun(PERMITS::release);
+		scope.processes.add(process);
+		process.onExit().thenRun(() -> scope.processes.remove(process));
+		if (scope.destroyed)
+			destroy(process);
+		return process;
+	}
+
+	/**
+	 * Wait for a process to exit. If the current thread has an open
+	 * {@link Scope}, the process is destroyed if interrupted.
+	 *
+	 * @param process process
+	 * @return exit value
+	 * @throws InterruptedException if interrupted
+	 */
+	public static int waitFor(Process process) throws InterruptedException {
+		if (SCOPE.get() == null)
+			return process.waitFor();
+		try {
+			return process.waitFor();
+		} catch (InterruptedException ie) {
+			destroy(process);
+			throw ie;
+		}
+	}
+
+	/**
+	 * Ask a process and its descendants to exit, forcibly destroying any still
+	 * running a short time later.
+	 *
+	 * @param process process
+	 */
+	public static void destroy(Process process) {
+		if (process.isAlive()) {
+			process.descendants().forEach(ProcessHandle::destroy);
+			process.destroy();
+			process.onExit().completeOnTimeout(process, DESTROY_TIMEOUT, TimeUnit.SECONDS).thenRun(() -> {
+				if (process.isAlive()) {
+					process.descendants().forEach(ProcessHandle::destroyForcibly);
+					process.destroyForcibly();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.OS;
+
+/**
+ * Class data sharing (AppCDS) for helper JVMs. The first helper started with a
+ * particular JVM and class path dumps the classes it loaded to an archive when
+ * it exits, and every later helper maps that archive rather than loading and
+ * verifying the same classes again.
+ * <p>
+ * Archives are kept in a cache directory, named after a hash of the JVM and of
+ * the path, size and modification time of every class path and module path
+ * entry, so any change results in a new archive. The JVM ignores an archive it
+ * cannot use, so at worst a helper starts as it would without one. CDS cannot
+ * archive classes loaded from directories, so nothing is done if the path
+ * includes any (e.g. in development).
+ */
+public final class ClassDataSharing {
+	final static Logger LOG = Logger.getLogger(ClassDataSharing.class.getSimpleName());
+
+	private final static String EXTENSION = ".jsa";
+	private final static String PENDING = ".pending";
+	private final static int MAX_ARCHIVES = Integer.getInteger("liftlib.cdsMaxArchives", 4);
+	private final static Duration PENDING_TIMEOUT = Duration.ofMinutes(10);
+
+	private ClassDataSharing() {
+	}
+
+	/**
+	 * Get the cache directory for a particular use.
+	 *
+	 * @param name name of cache
+	 * @return directory
+	 */
+	public static Path cacheDirectory(String name) {
+		var dir = System.getProperty("liftlib.cacheDir");
+		if (dir != null)
+			return Paths.get(dir, name);
+		var home = System.getProperty("user.home");
+		if (OS.isWindows()) {
+			var local = System.getenv("LOCALAPPDATA");
+			return (local == null ? Paths.get(home, "AppData", "Local") : Paths.get(local)).resolve("liftlib").resolve(name);
+		} else if (OS.isMacOs()) {
+			return Paths.get(home, "Library", "Caches", "liftlib", name);
+		} else {
+			var xdg = System.getenv("XDG_CACHE_HOME");
+			return (xdg == null || xdg.isEmpty() ? Paths.get(home, ".cache") : Paths.get(xdg)).resolve("liftlib").resolve(name);
+		}
+	}
+
+	/**
+	 * Get the JVM options needed to use (or create) the archive for a helper with
+	 * the given paths.
+	 *
+	 * @param classPath class path
+	 * @param modulePath module path
+	 * @param mainClass main class or module
+	 * @return options, empty if class data sharing cannot be used
+	 */
+	public static List<String> options(Collection<String> classPath, Collection<String> modulePath, String mainClass) {
+		try {
+			var key = key(classPath, modulePath, mainClass);
+			if (key.isEmpty())
+				return List.of();
+
+			var dir = cacheDirectory("cds");
+			Files.createDirectories(dir);
+			var archive = dir.resolve("helper-" + key.get() + EXTENSION);
+			var pending = dir.resolve("helper-" + key.get() + PENDING);
+
+			var opts = new ArrayList<String>();
+			if (Files.exists(archive) && Files.size(archive) > 0) {
+				Files.deleteIfExists(pending);
+				opts.add("-XX:SharedArchiveFile=" + archive);
+			} else if (claim(pending)) {
+				if (LOG.isLoggable(Level.FINE))
+					LOG.fine("Helper will create class data archive " + archive);
+				opts.add("-XX:ArchiveClassesAtExit=" + archive);
+				prune(dir);
+			} else {
+				/* Another helper is creating the archive */
+				return List.of();
+			}
+			/* Unarchivable classes are not a problem, so don't tell the user about them */
+			opts.add("-Xlog:cds=off");
+			opts.add("-Xlog:cds+dynamic=off");
+			opts.add("-Xlog:class+path=off");
+			return opts;
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.WARNING, "Could not set up class data sharing for helper.", e);
+			return List.of();
+		}
+	}
+
+	private static Optional<String> key(Collection<String> classPath, Collection<String> modulePath, String mainClass) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(digest, System.getProperty("java.home"));
+		update(digest, System.getProperty("java.vm.version"));
+		update(digest, mainClass);
+		for (var paths : List.of(classPath, modulePath)) {
+			update(digest, File.pathSeparator);
+			for (var el : paths) {
+				var path = Paths.get(el).toAbsolutePath();
+				if (!Files.exists(path))
+					continue;
+				if (Files.isDirectory(path))
+					return Optional.empty();
+				update(digest, path.toString());
+				update(digest, String.valueOf(Files.size(path)));
+				update(digest, String.valueOf(Files.getLastModifiedTime(path).toMillis()));
+			}
+		}
+		var hash = digest.digest();
+		var hex = new StringBuilder();
+		for (int i = 0; i < 8; i++)
+			hex.append(String.format("%02x", hash[i]));
+		return Optional.of(hex.toString());
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	private static boolean claim(Path pending) throws IOException {
+		try {
+			Files.createFile(pending);
+			return true;
+		} catch (FileAlreadyExistsException faee) {
+			/* A helper that claimed it but never exited cleanly leaves this behind */
+			if (System.currentTimeMillis() - Files.getLastModifiedTime(pending).toMillis() > PENDING_TIMEOUT.toMillis()) {
+				Files.setLastModifiedTime(pending, FileTime.fromMillis(System.currentTimeMillis()));
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private static void prune(Path dir) throws IOException {
+		var archives = new ArrayList<Path>();
+		try (var stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+			stream.forEach(archives::add);
+		}
+		if (archives.size() < MAX_ARCHIVES)
+			return;
+		archives.sort(Comparator.comparingLong(ClassDataSharing::lastModified).reversed());
+		for (var old : archives.subList(MAX_ARCHIVES - 1, archives.size())) {
+			try {
+				Files.delete(old);
+			} catch (IOException ioe) {
+				if (LOG.isLoggable(Level.FINE))
+					LOG.log(Level.FINE, "Failed to remove old class data archive " + old, ioe);
+			}
+		}
+	}
+
+	private static long lastModified(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a closure (or batch of closures) being encoded and
+ * sent to a helper.
+ */
+@Name("com.sshtools.liftlib.ClosureSent")
+@Label("Closure Sent")
+@Category("LiftLib")
+@Description("A closure was encoded and sent to an elevated helper")
+@StackTrace(false)
+public final class ClosureSentEvent extends Event {
+
+	@Label("Closure")
+	public String closure;
+
+	@Label("Request ID")
+	public long id;
+
+	@Label("Size")
+	@DataAmount
+	public long size;
+}
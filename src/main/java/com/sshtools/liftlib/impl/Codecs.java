@@ -0,0 +1,282 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import com.sshtools.liftlib.Codec;
+
+/**
+ * Registry of all available {@link Codec}s, and the encoding of individual
+ * values within a frame. Common simple types are written directly, anything
+ * with a registered codec is written using that, and everything else falls
+ * back to Java serialization.
+ */
+public final class Codecs {
+
+	private final static int NULL = 0;
+	private final static int CODEC = 1;
+	private final static int SERIALIZED = 2;
+	private final static int STRING = 3;
+	private final static int INTEGER = 4;
+	private final static int LONG = 5;
+	private final static int BOOLEAN = 6;
+	private final static int STRING_ARRAY = 7;
+	private final static int FLOAT = 8;
+	private final static int DOUBLE = 9;
+
+	private final static class Default {
+		private final static Codecs DEFAULT = new Codecs();
+	}
+
+	private final static class LoaderObjectInputStream extends ObjectInputStream {
+		private final ClassLoader loader;
+
+		private LoaderObjectInputStream(InputStream in, ClassLoader loader) throws IOException {
+			super(in);
+			this.loader = loader;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			if (loader != null) {
+				try {
+					return Class.forName(desc.getName(), false, loader);
+				} catch (ClassNotFoundException cnfe) {
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+
+	public static Codecs get() {
+		return Default.DEFAULT;
+	}
+
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			var b = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		var len = in.readInt();
+		if (len == -1)
+			return null;
+		var b = new byte[len];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private final Map<Class<?>, Codec<?>> byType = new HashMap<>();
+	private final Map<Integer, Codec<?>> byId = new HashMap<>();
+	private final ThreadLocal<ClassLoader> loader = new ThreadLocal<>();
+
+	private Codecs() {
+		for (var codec : load(Codecs.class.getClassLoader())) {
+			register(codec);
+		}
+		var tccl = Thread.currentThread().getContextClassLoader();
+		if (tccl != null && tccl != Codecs.class.getClassLoader()) {
+			for (var codec : load(tccl)) {
+				if (!byId.containsKey(codec.id()))
+					register(codec);
+			}
+		}
+	}
+
+	/* A service can only be looked up by its raw type */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Iterable<Codec<?>> load(ClassLoader loader) {
+		return (Iterable) ServiceLoader.load(Codec.class, loader);
+	}
+
+	private void register(Codec<?> codec) {
+		var was = byId.put(codec.id(), codec);
+		if (was != null && !was.getClass().equals(codec.getClass()))
+			throw new IllegalStateException("Codec " + codec.getClass().getName() + " has the same ID as "
+					+ was.getClass().getName() + ", " + codec.id());
+		byType.put(codec.type(), codec);
+	}
+
+	/**
+	 * Write any value.
+	 *
+	 * @param out output
+	 * @param value value
+	 * @throws IOException on error
+	 */
+	@SuppressWarnings("unchecked")
+	public void write(DataOutput out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof String[]) {
+			var arr = (String[]) value;
+			out.writeByte(STRING_ARRAY);
+			out.writeInt(arr.length);
+			for (var s : arr)
+				writeString(out, s);
+		} else {
+			var codec = (Codec<Object>) byType.get(value.getClass());
+			if (codec == null) {
+				var bout = new ByteArrayOutputStream();
+				try (var oout = new ObjectOutputStream(bout)) {
+					oout.writeObject(value);
+				}
+				out.writeByte(SERIALIZED);
+				out.writeInt(bout.size());
+				out.write(bout.toByteArray());
+			} else {
+				out.writeByte(CODEC);
+				out.writeInt(codec.id());
+				codec.encode(value, out);
+			}
+		}
+	}
+
+	/**
+	 * Encode any value to a standalone byte array.
+	 *
+	 * @param value value
+	 * @return encoded value
+	 * @throws IOException on error
+	 */
+	public byte[] encode(Object value) throws IOException {
+		var bout = new ByteArrayOutputStream();
+		var dout = new DataOutputStream(bout);
+		write(dout, value);
+		dout.flush();
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Decode a value encoded by {@link #encode(Object)}.
+	 *
+	 * @param data encoded value
+	 * @param loader class loader, or <code>null</code> for the default
+	 * @return value
+	 * @throws IOException on error
+	 */
+	public Object decode(byte[] data, ClassLoader loader) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(data)), loader);
+	}
+
+	/**
+	 * Read any value, resolving serialized classes using the given class loader.
+	 *
+	 * @param in input
+	 * @param loader class loader, or <code>null</code> for the default
+	 * @return value
+	 * @throws IOException on error
+	 */
+	public Object read(DataInput in, ClassLoader loader) throws IOException {
+		var was = this.loader.get();
+		this.loader.set(loader);
+		try {
+			return read(in);
+		} finally {
+			if (was == null)
+				this.loader.remove();
+			else
+				this.loader.set(was);
+		}
+	}
+
+	/**
+	 * Read any value.
+	 *
+	 * @param in input
+	 * @return value
+	 * @throws IOException on error
+	 */
+	public Object read(DataInput in) throws IOException {
+		var type = in.readUnsignedByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case STRING:
+			return readString(in);
+		case INTEGER:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case BOOLEAN:
+			return in.readBoolean();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING_ARRAY:
+			var arr = new String[in.readInt()];
+			for (int i = 0; i < arr.length; i++)
+				arr[i] = readString(in);
+			return arr;
+		case CODEC:
+			var id = in.readInt();
+			var codec = byId.get(id);
+			if (codec == null)
+				throw new InvalidClassException("No codec with ID " + id);
+			return codec.decode(in);
+		case SERIALIZED:
+			var b = new byte[in.readInt()];
+			in.readFully(b);
+			try (var oin = new LoaderObjectInputStream(new ByteArrayInputStream(b), loader.get())) {
+				return oin.readObject();
+			} catch (ClassNotFoundException cnfe) {
+				throw new IOException("Failed to deserialize.", cnfe);
+			}
+		default:
+			throw new IOException("Unknown value type. " + type);
+		}
+	}
+}
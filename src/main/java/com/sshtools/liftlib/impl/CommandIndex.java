@@ -0,0 +1,171 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.ElevatorListener.Phase;
+import com.sshtools.liftlib.OS;
+
+/**
+ * Resolves commands against the <code>PATH</code>. Each directory on the path
+ * is listed once, and every command resolved (or found to be missing) is
+ * remembered, so repeated lookups from any thread cost a single map read. The
+ * whole index is discarded after <code>liftlib.commandCacheTtl</code> seconds
+ * (default 60), or when {@link #invalidate()} is called, so commands installed
+ * or removed while running are eventually noticed. <code>PATH</code> itself is
+ * read again each time the index is rebuilt (reading the environment is
+ * relatively expensive, and it cannot change within a running JVM anyway).
+ */
+public final class CommandIndex {
+	final static Logger LOG = Logger.getLogger(CommandIndex.class.getSimpleName());
+
+	private final static Duration TTL = Duration.ofSeconds(Integer.getInteger("liftlib.commandCacheTtl", 60));
+
+	private final static class Default {
+		private final static CommandIndex DEFAULT = new CommandIndex();
+	}
+
+	/* Marks a directory that cannot be listed, so is checked for each command. Must not be shared with any other empty set */
+	private final static Set<String> UNLISTABLE = Collections.unmodifiableSet(new HashSet<>());
+
+	private final static class Snapshot {
+		private final String path;
+		private final long expires;
+		private final List<Path> dirs;
+		private final Map<Path, Set<String>> listings = new ConcurrentHashMap<>();
+		private final Map<String, Optional<Path>> resolved = new ConcurrentHashMap<>();
+
+		private Snapshot(String path) {
+			this.path = path;
+			this.expires = System.nanoTime() + TTL.toNanos();
+			var dirs = new ArrayList<Path>();
+			if (path != null) {
+				for (var el : path.split(File.pathSeparator)) {
+					if (!el.isEmpty()) {
+						try {
+							dirs.add(Paths.get(el).toAbsolutePath());
+						} catch (InvalidPathException ipe) {
+						}
+					}
+				}
+			}
+			this.dirs = Collections.unmodifiableList(dirs);
+		}
+
+		private boolean isExpired() {
+			return System.nanoTime() - expires >= 0;
+		}
+	}
+
+	public static CommandIndex get() {
+		return Default.DEFAULT;
+	}
+
+	private volatile Snapshot snapshot;
+
+	private CommandIndex() {
+	}
+
+	/**
+	 * Find the absolute path of a command.
+	 *
+	 * @param command command name
+	 * @return path of command, or empty if not found
+	 */
+	public Optional<Path> find(String command) {
+		var current = current();
+		var found = current.resolved.get(command);
+		if (found == null) {
+			var started = System.nanoTime();
+			found = current.resolved.computeIfAbsent(command, k -> resolve(current, k));
+			Spans.current().record(Phase.COMMAND_LOOKUP, command, started);
+		}
+		return found;
+	}
+
+	/**
+	 * Discard everything known, so the next lookups list the <code>PATH</code>
+	 * again.
+	 */
+	public void invalidate() {
+		snapshot = null;
+	}
+
+	private Snapshot current() {
+		var current = snapshot;
+		if (current == null || current.isExpired()) {
+			var path = System.getenv("PATH");
+			if (current != null && !Objects.equals(path, current.path) && LOG.isLoggable(Level.FINE))
+				LOG.fine(String.format("PATH changed from %s to %s", current.path, path));
+			/* Racing threads may each build one, which is harmless */
+			current = new Snapshot(path);
+			snapshot = current;
+		}
+		return current;
+	}
+
+	private static Optional<Path> resolve(Snapshot snapshot, String command) {
+		var name = OS.isWindows() ? command + ".exe" : command;
+		var key = OS.isWindows() ? name.toLowerCase(Locale.ROOT) : name;
+		for (var dir : snapshot.dirs) {
+			var listing = snapshot.listings.computeIfAbsent(dir, CommandIndex::list);
+			if (listing == UNLISTABLE) {
+				var file = dir.resolve(name);
+				if (Files.exists(file))
+					return Optional.of(file);
+			} else if (listing.contains(key)) {
+				return Optional.of(dir.resolve(name));
+			}
+		}
+		return Optional.empty();
+	}
+
+	private static Set<String> list(Path dir) {
+		if (!Files.isDirectory(dir))
+			return Collections.emptySet();
+		var names = new HashSet<String>();
+		try (var stream = Files.newDirectoryStream(dir)) {
+			for (var file : stream) {
+				var name = file.getFileName().toString();
+				names.add(OS.isWindows() ? name.toLowerCase(Locale.ROOT) : name);
+			}
+			return names;
+		} catch (IOException | SecurityException e) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "Cannot list " + dir + ", commands will be checked individually.", e);
+			return UNLISTABLE;
+		}
+	}
+}
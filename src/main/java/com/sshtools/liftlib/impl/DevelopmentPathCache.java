@@ -0,0 +1,214 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.OS;
+import com.sshtools.liftlib.OS.CopyFlag;
+
+/**
+ * A persistent copy of class path and module path entries, for macOS in
+ * development mode, where the elevated helper may not be allowed to read the
+ * originals (e.g. in a project under <code>~/Documents</code>).
+ * <p>
+ * Each entry is copied to a directory named after a hash of its original path,
+ * and kept between helper launches. Each time it is used, only files whose size
+ * or modification time differ from the original are copied again, and files
+ * that no longer exist in the original are removed, so the cost of a launch
+ * depends on how much has changed rather than on the size of the project.
+ * Entries that have not been used for some time are removed.
+ * <p>
+ * The cache is private to the user. It is refused if it exists but is owned by
+ * anyone else, as its contents will be run with elevated privileges.
+ */
+public final class DevelopmentPathCache {
+	final static Logger LOG = Logger.getLogger(DevelopmentPathCache.class.getSimpleName());
+
+	private final static Duration MAX_AGE = Duration.ofDays(30);
+	private final static String LOCK = ".lock";
+
+	/* FileChannel locks are held per process, so also exclude other threads */
+	private final static Object JVM_LOCK = new Object();
+
+	private DevelopmentPathCache() {
+	}
+
+	/**
+	 * Get the root of the cache, creating it if needed.
+	 *
+	 * @return root
+	 * @throws IOException if the cache cannot be created or is not safe to use
+	 */
+	public static Path root() throws IOException {
+		var user = System.getProperty("user.name");
+		var root = Paths.get("/tmp", "liftlib-" + user);
+		if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+			try {
+				Files.createDirectory(root, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			} catch (UnsupportedOperationException uoe) {
+				Files.createDirectory(root);
+			}
+		}
+		if (!Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)
+				|| !Files.getOwner(root, LinkOption.NOFOLLOW_LINKS).getName().equals(user))
+			throw new IOException("Class path cache " + root + " is not a directory owned by " + user + ".");
+		return root;
+	}
+
+	/**
+	 * Bring the cached copy of a JAR or directory up to date with the original.
+	 *
+	 * @param source original JAR or directory
+	 * @return path of the cached copy
+	 * @throws IOException on error
+	 */
+	public static Path sync(Path source) throws IOException {
+		source = source.toAbsolutePath().normalize();
+		var root = root();
+		var entry = root.resolve(hash(source.toString()));
+		synchronized (JVM_LOCK) {
+			try (var lockChannel = FileChannel.open(root.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				/* Released when the channel is closed */
+				lockChannel.lock();
+				var started = System.nanoTime();
+				int[] copied = new int[2];
+				Path target;
+				if (Files.isDirectory(source)) {
+					target = entry;
+					syncDirectory(source, target, copied);
+				} else {
+					Files.createDirectories(entry);
+					target = entry.resolve(source.getFileName());
+					if (syncFile(source, target))
+						copied[0]++;
+					copied[1]++;
+				}
+				Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+				if (LOG.isLoggable(Level.FINE))
+					LOG.fine(String.format("Synchronized %s to %s, copied %d of %d files in %dms", source, target,
+							copied[0], copied[1], Duration.ofNanos(System.nanoTime() - started).toMillis()));
+				prune(root);
+				return target;
+			}
+		}
+	}
+
+	private static void syncDirectory(Path source, Path target, int[] copied) throws IOException {
+		var stats = OS.copy(source, target, null, CopyFlag.PARALLEL, CopyFlag.SKIP_UNCHANGED);
+		copied[0] += (int) stats.files();
+		copied[1] += (int) (stats.files() + stats.skipped());
+		removeAbsent(source, target);
+	}
+
+	private static void removeAbsent(Path source, Path target) throws IOException {
+		var stale = new ArrayList<Path>();
+		Files.walkFileTree(target, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (!Files.exists(source.resolve(target.relativize(dir).toString()), LinkOption.NOFOLLOW_LINKS)) {
+					stale.add(dir);
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!Files.exists(source.resolve(target.relativize(file).toString()), LinkOption.NOFOLLOW_LINKS))
+					stale.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		for (var path : stale)
+			delete(path);
+	}
+
+	private static boolean syncFile(Path source, Path target) throws IOException {
+		var sourceAttrs = Files.readAttributes(source, BasicFileAttributes.class);
+		if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+			var targetAttrs = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (targetAttrs.isRegularFile() && targetAttrs.size() == sourceAttrs.size()
+					/* Copies do not always keep the full precision */
+					&& targetAttrs.lastModifiedTime().toMillis() == sourceAttrs.lastModifiedTime().toMillis())
+				return false;
+		}
+		/* Replace atomically, a helper that is still running may have the old copy open */
+		var tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+		Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	private static void prune(Path root) {
+		var now = System.currentTimeMillis();
+		var old = new ArrayList<Path>();
+		try (var stream = Files.newDirectoryStream(root, p -> Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS))) {
+			for (var entry : stream) {
+				if (now - Files.getLastModifiedTime(entry).toMillis() > MAX_AGE.toMillis())
+					old.add(entry);
+			}
+			for (var entry : old)
+				delete(entry);
+		} catch (IOException ioe) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "Failed to prune class path cache.", ioe);
+		}
+	}
+
+	private static void delete(Path path) throws IOException {
+		if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			var children = new ArrayList<Path>();
+			try (var stream = Files.newDirectoryStream(path)) {
+				stream.forEach(children::add);
+			}
+			for (var child : children)
+				delete(child);
+		}
+		Files.deleteIfExists(path);
+	}
+
+	private static String hash(String value) {
+		try {
+			var hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			var hex = new StringBuilder();
+			for (int i = 0; i < 8; i++)
+				hex.append(String.format("%02x", hash[i]));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.ElevatedClosure;
+
+/**
+ * A {@link com.sshtools.liftlib.ClosurePublisher} that runs the closure in a
+ * helper. Demand is passed on to the helper as credit, and the helper never
+ * sends more events than it has credit for, so the only events held in this JVM
+ * are those already requested.
+ *
+ * @param <S> return type
+ * @param <E> event type
+ */
+public final class ElevatedClosurePublisher<S extends Serializable, E extends Serializable> extends AbstractClosurePublisher<S, E> {
+	private final static Logger LOG = Logger.getLogger(ElevatedClosurePublisher.class.getSimpleName());
+
+	@FunctionalInterface
+	public interface ConnectionSource {
+		/**
+		 * Get a leased connection. It will be released when the closure completes.
+		 *
+		 * @return connection
+		 * @throws IOException on error
+		 */
+		ElevatedConnection get() throws IOException;
+	}
+
+	private final ConnectionSource source;
+
+	private ElevatedConnection connection;
+	private long id;
+	private long credits;
+
+	public ElevatedClosurePublisher(ElevatedClosure<S, E> closure, Executor executor, ConnectionSource source) {
+		super(closure, executor);
+		this.source = source;
+	}
+
+	@Override
+	protected void start() throws Exception {
+		var connection = source.get();
+		result().whenComplete((r, t) -> {
+			try {
+				connection.release();
+			} catch (IOException ioe) {
+				LOG.log(Level.WARNING, "Failed to release elevated connection.", ioe);
+			}
+		});
+		synchronized (this) {
+			id = connection.stream(closure, credits, this);
+			this.connection = connection;
+			/* Cancelled before the closure could be sent */
+			if (isCancelled())
+				connection.cancel(id);
+		}
+	}
+
+	@Override
+	protected synchronized void onRequest(long n) {
+		if (connection == null) {
+			credits = credits + n < 0 ? Long.MAX_VALUE : credits + n;
+		} else {
+			try {
+				connection.credit(id, n);
+			} catch (IOException ioe) {
+				complete(null, ioe);
+			}
+		}
+	}
+
+	@Override
+	protected void onCancel() {
+		/* Unblock the closure in case it ignores being interrupted */
+		onRequest(Long.MAX_VALUE);
+		synchronized (this) {
+			if (connection != null) {
+				try {
+					connection.cancel(id);
+				} catch (IOException ioe) {
+					LOG.log(Level.WARNING, "Failed to cancel closure.", ioe);
+				}
+			}
+		}
+	}
+}
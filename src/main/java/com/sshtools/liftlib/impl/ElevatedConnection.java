@@ -0,0 +1,700 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.channels.ByteChannel;
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.BatchResult;
+import com.sshtools.liftlib.ClosurePipe;
+import com.sshtools.liftlib.ElevatedClosure;
+import com.sshtools.liftlib.ElevatorListener.Phase;
+import com.sshtools.liftlib.Helper;
+import com.sshtools.liftlib.IElevator.BatchMode;
+import com.sshtools.liftlib.impl.Frames.Payload;
+
+/**
+ * A multiplexed connection to an elevated helper. Any number of closures may be
+ * in flight at once, each request is tagged with a correlation id and the
+ * helper's replies are routed back to the waiting caller by a single reader
+ * thread.
+ */
+public final class ElevatedConnection implements Closeable {
+
+	final static Logger LOG = Logger.getLogger(ElevatedConnection.class.getSimpleName());
+
+	private final static class Message {
+		private final int type;
+		private final boolean ok;
+		private final Object value;
+		private final int index;
+
+		private Message(int type, boolean ok, Object value) {
+			this(type, ok, value, -1);
+		}
+
+		private Message(int type, boolean ok, Object value, int index) {
+			this.type = type;
+			this.ok = ok;
+			this.value = value;
+			this.index = index;
+		}
+	}
+
+	private abstract static class Pending {
+		protected final ElevatedClosure<?, ?> closure;
+		private volatile long started;
+		private volatile long serialized;
+
+		private Pending(ElevatedClosure<?, ?> closure) {
+			this.closure = closure;
+		}
+
+		String detail() {
+			return closure.getClass().getName();
+		}
+
+		ClassLoader loader(int index) {
+			return closure.getClass().getClassLoader();
+		}
+
+		abstract void deliver(Message msg);
+	}
+
+	private static class BlockingPending extends Pending {
+		protected final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+
+		private BlockingPending(ElevatedClosure<?, ?> closure) {
+			super(closure);
+		}
+
+		@Override
+		void deliver(Message msg) {
+			queue.add(msg);
+		}
+	}
+
+	private final static class BatchPending extends BlockingPending {
+		private final List<? extends ElevatedClosure<?, ?>> closures;
+
+		private BatchPending(List<? extends ElevatedClosure<?, ?>> closures) {
+			super(null);
+			this.closures = closures;
+		}
+
+		@Override
+		ClassLoader loader(int index) {
+			return index < 0 || index >= closures.size() ? null : closures.get(index).getClass().getClassLoader();
+		}
+
+		@Override
+		String detail() {
+			return "Batch of " + closures.size();
+		}
+	}
+
+	/**
+	 * Delivers events and the result for a single closure on an {@link Executor},
+	 * one at a time and in the order they arrived, so the reader thread is never
+	 * held up by a slow event handler.
+	 */
+	private static class AsyncPending extends Pending {
+		private final CompletableFuture<Object> future = new CompletableFuture<>();
+		private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final Executor executor;
+
+		private AsyncPending(ElevatedClosure<?, ?> closure, Executor executor) {
+			super(closure);
+			this.executor = executor;
+		}
+
+		@Override
+		void deliver(Message msg) {
+			queue.add(msg);
+			if (scheduled.compareAndSet(false, true))
+				executor.execute(this::drain);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void drain() {
+			do {
+				Message msg;
+				while ((msg = queue.poll()) != null) {
+					if (msg.type == Helper.RESP_EVENT) {
+						try {
+							((ElevatedClosure<Serializable, Serializable>) closure).events((List<Serializable>) msg.value);
+						} catch (RuntimeException re) {
+							LOG.log(Level.WARNING, "Event handler failed.", re);
+						}
+					} else if (msg.ok) {
+						future.complete(msg.value);
+					} else {
+						future.completeExceptionally((Throwable) msg.value);
+					}
+				}
+				scheduled.set(false);
+			} while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+	}
+
+	/**
+	 * An {@link AsyncPending} that also carries input to the closure, sent
+	 * no further ahead of the helper than it has granted credit for.
+	 */
+	private final static class PipePending extends AsyncPending implements ClosurePipe<Serializable> {
+		private final PipeOutput output;
+		private volatile long id;
+
+		private PipePending(ElevatedClosure<?, ?> closure, Executor executor, Frames frames) {
+			super(closure, executor);
+			output = new PipeOutput(PipeOutput.WINDOW, (b, off, len) -> frames.write(Helper.CMD_INPUT, id, out -> out.write(b, off, len)));
+			super.future.whenComplete((r, e) -> output.finish());
+		}
+
+		@Override
+		public OutputStream input() {
+			return output;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public CompletableFuture<Serializable> result() {
+			return (CompletableFuture<Serializable>) (CompletableFuture<?>) super.future;
+		}
+	}
+
+	/**
+	 * Passes events and the result for a single closure to a publisher, which
+	 * queues them for its subscriber.
+	 */
+	private final static class StreamPending extends Pending {
+		private final AbstractClosurePublisher<?, ?> publisher;
+
+		private StreamPending(ElevatedClosure<?, ?> closure, AbstractClosurePublisher<?, ?> publisher) {
+			super(closure);
+			this.publisher = publisher;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		void deliver(Message msg) {
+			var target = (AbstractClosurePublisher<Serializable, Serializable>) publisher;
+			if (msg.type == Helper.RESP_EVENT)
+				target.emit((List<Serializable>) msg.value);
+			else if (msg.ok)
+				target.complete((Serializable) msg.value, null);
+			else
+				target.complete(null, (Throwable) msg.value);
+		}
+	}
+
+	private final Closeable resource;
+	private final BooleanSupplier active;
+	private final Spans spans;
+	private final Frames frames;
+	private final Codecs codecs = Codecs.get();
+	private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+	private final AtomicLong ids = new AtomicLong();
+	private final Thread reader;
+
+	private int leases;
+	private boolean retired;
+	private volatile boolean closed;
+	private long lastUsed = System.currentTimeMillis();
+	private volatile Exception failure;
+
+	public ElevatedConnection(ElevatedJVM jvm, Spans spans) throws IOException {
+		this(jvm, jvm::isActive, jvm.getInputStream(), jvm.getOutputStream(), spans);
+	}
+
+	/**
+	 * Connection to a helper that was not started by this JVM, e.g. a daemon.
+	 *
+	 * @param channel channel
+	 * @param spans where to report closure timings
+	 * @throws IOException on error
+	 */
+	public ElevatedConnection(ByteChannel channel, Spans spans) throws IOException {
+		this(channel, channel::isOpen, ChannelStreams.input(channel), ChannelStreams.output(channel), spans);
+	}
+
+	private ElevatedConnection(Closeable resource, BooleanSupplier active, InputStream in, OutputStream out, Spans spans) throws IOException {
+		this.resource = resource;
+		this.active = active;
+		this.spans = spans;
+
+		frames = new Frames(in, out);
+
+		reader = new Thread(this::readLoop, "ElevationReader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Send a closure to the helper and block until its result arrives. Events
+	 * emitted by the helper for this closure are delivered on the calling thread.
+	 *
+	 * @param <S> return type
+	 * @param <E> event type
+	 * @param closure closure
+	 * @return result
+	 * @throws Exception on any error, including any thrown by the closure itself
+	 */
+	@SuppressWarnings("unchecked")
+	public <S extends Serializable, E extends Serializable> S closure(ElevatedClosure<S, E> closure) throws Exception {
+		var p = new BlockingPending(closure);
+		var id = send(Helper.CMD_CLOSURE, p, out -> {
+			out.writeLong(Long.MAX_VALUE);
+			codecs.write(out, closure);
+		});
+		try {
+			while (true) {
+				var msg = p.queue.take();
+				if (msg.type == Helper.RESP_EVENT) {
+					closure.events((List<E>) msg.value);
+				} else if (msg.ok) {
+					return (S) msg.value;
+				} else {
+					throw asException((Throwable) msg.value);
+				}
+			}
+		} finally {
+			pending.remove(id);
+		}
+	}
+
+	/**
+	 * Send a list of closures to the helper in a single frame, and block until the
+	 * outcome of all of them arrives. Events emitted by each closure are delivered
+	 * to that closure on the calling thread.
+	 *
+	 * @param closures closures
+	 * @param mode what to do when a closure fails
+	 * @return outcome of each closure
+	 * @throws Exception if the batch as a whole failed
+	 */
+	@SuppressWarnings("unchecked")
+	public List<BatchResult> batch(List<? extends ElevatedClosure<?, ?>> closures, BatchMode mode) throws Exception {
+		var p = new BatchPending(closures);
+		var id = send(Helper.CMD_BATCH, p, out -> {
+			out.writeBoolean(mode == BatchMode.FAIL_FAST);
+			out.writeInt(closures.size());
+			for (var closure : closures) {
+				var data = codecs.encode(closure);
+				out.writeInt(data.length);
+				out.write(data);
+			}
+		});
+		try {
+			while (true) {
+				var msg = p.queue.take();
+				if (msg.type == Helper.RESP_EVENT) {
+					((ElevatedClosure<Serializable, Serializable>) closures.get(msg.index)).events((List<Serializable>) msg.value);
+				} else if (msg.ok) {
+					return (List<BatchResult>) msg.value;
+				} else {
+					throw asException((Throwable) msg.value);
+				}
+			}
+		} finally {
+			pending.remove(id);
+		}
+	}
+
+	/**
+	 * Send a closure to the helper without waiting for its result. Events emitted
+	 * by the helper for this closure, and finally the completion of the returned
+	 * future, are delivered in order using the supplied executor. Cancelling the
+	 * future cancels the closure in the helper.
+	 *
+	 * @param <S> return type
+	 * @param <E> event type
+	 * @param closure closure
+	 * @param executor executor used to deliver events and the result
+	 * @return future result
+	 */
+	@SuppressWarnings("unchecked")
+	public <S extends Serializable, E extends Serializable> CompletableFuture<S> closureAsync(ElevatedClosure<S, E> closure, Executor executor) {
+		var p = new AsyncPending(closure, executor);
+		try {
+			cancelWith(p.future, send(Helper.CMD_CLOSURE, p, out -> {
+				out.writeLong(Long.MAX_VALUE);
+				codecs.write(out, closure);
+			}));
+		} catch (Exception e) {
+			p.future.completeExceptionally(e);
+		}
+		return (CompletableFuture<S>) (CompletableFuture<?>) p.future;
+	}
+
+	/**
+	 * Send a closure to the helper, along with a stream the caller may write
+	 * input to while it runs. The helper only accepts a limited amount of input
+	 * ahead of the closure reading it, after which writes block. Events and the
+	 * result are delivered as for {@link #closureAsync(ElevatedClosure, Executor)}.
+	 *
+	 * @param <S> return type
+	 * @param <E> event type
+	 * @param closure closure
+	 * @param executor executor used to deliver events and the result
+	 * @return pipe
+	 * @throws Exception on error
+	 */
+	@SuppressWarnings("unchecked")
+	public <S extends Serializable, E extends Serializable> ClosurePipe<S> pipe(ElevatedClosure<S, E> closure, Executor executor) throws Exception {
+		var p = new PipePending(closure, executor, frames);
+		p.id = send(Helper.CMD_PIPE, p, out -> {
+			out.writeLong(Long.MAX_VALUE);
+			codecs.write(out, closure);
+		});
+		cancelWith(p.result(), p.id);
+		return (ClosurePipe<S>) (ClosurePipe<?>) p;
+	}
+
+	/**
+	 * Send a closure to the helper with flow control. The helper will only send
+	 * as many events as it has been given credit for, and blocks the closure when
+	 * it has none. Events and the result are passed to the publisher.
+	 *
+	 * @param closure closure
+	 * @param credits initial number of events the helper may send
+	 * @param publisher publisher
+	 * @return id of the closure, used to grant further credit
+	 * @throws Exception on error
+	 */
+	public long stream(ElevatedClosure<?, ?> closure, long credits, AbstractClosurePublisher<?, ?> publisher) throws Exception {
+		return send(Helper.CMD_CLOSURE, new StreamPending(closure, publisher), out -> {
+			out.writeLong(credits);
+			codecs.write(out, closure);
+		});
+	}
+
+	/**
+	 * Allow the helper to send more events for a closure started with
+	 * {@link #stream(ElevatedClosure, long, AbstractClosurePublisher)}.
+	 *
+	 * @param id id of closure
+	 * @param credits number of additional events, or {@link Long#MAX_VALUE} for unlimited
+	 * @throws IOException on error
+	 */
+	public void credit(long id, long credits) throws IOException {
+		if (pending.containsKey(id)) {
+			frames.write(Helper.CMD_CREDIT, id, out -> out.writeLong(credits));
+		}
+	}
+
+	/**
+	 * Cancel a closure running in the helper. A closure that has not started yet
+	 * never will, and one that has is interrupted, and any processes it started
+	 * are destroyed. Whatever the closure then returns or throws is still
+	 * delivered.
+	 *
+	 * @param id id of closure
+	 * @throws IOException on error
+	 */
+	public void cancel(long id) throws IOException {
+		if (pending.containsKey(id)) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.fine(MessageFormat.format("Cancelling {0}", id));
+			frames.write(Helper.CMD_CANCEL, id, out -> {
+			});
+		}
+	}
+
+	private void cancelWith(CompletableFuture<?> future, long id) {
+		future.whenComplete((r, t) -> {
+			if (future.isCancelled()) {
+				try {
+					cancel(id);
+				} catch (IOException ioe) {
+					LOG.log(Level.WARNING, "Failed to cancel closure.", ioe);
+				}
+			}
+		});
+	}
+
+	private long send(int type, Pending p, Payload payload) throws Exception {
+		var id = ids.incrementAndGet();
+		pending.put(id, p);
+		try {
+			checkFailure();
+			if (LOG.isLoggable(Level.FINE))
+				LOG.fine(MessageFormat.format("Sending command {0} for {1}", type, id));
+			var event = Spans.isFlightRecorderInitialized() ? new ClosureSentEvent() : null;
+			if (event != null)
+				event.begin();
+			p.started = System.nanoTime();
+			frames.write(type, id, out -> {
+				payload.write(out);
+				p.serialized = System.nanoTime() - p.started;
+				if (event != null)
+					event.size = out.size();
+			});
+			if (event != null) {
+				event.end();
+				if (event.shouldCommit()) {
+					event.closure = p.detail();
+					event.id = id;
+					event.commit();
+				}
+			}
+		} catch (Exception e) {
+			pending.remove(id);
+			throw e;
+		}
+		return id;
+	}
+
+	/**
+	 * Take a lease on this connection. A connection that has been retired or
+	 * closed will refuse new leases.
+	 *
+	 * @return leased
+	 */
+	public synchronized boolean lease() {
+		if (retired || closed)
+			return false;
+		leases++;
+		return true;
+	}
+
+	/**
+	 * Release a lease previously obtained with {@link #lease()}. If the connection
+	 * has been retired and this is the last lease, it will be closed.
+	 *
+	 * @throws IOException on error
+	 */
+	public void release() throws IOException {
+		synchronized (this) {
+			leases--;
+			lastUsed = System.currentTimeMillis();
+			if (!retired || leases > 0)
+				return;
+		}
+		close();
+	}
+
+	/**
+	 * Retire this connection so it accepts no further leases. It will be closed
+	 * as soon as all closures currently in flight have completed.
+	 *
+	 * @throws IOException on error
+	 */
+	public void retire() throws IOException {
+		synchronized (this) {
+			retired = true;
+			if (leases > 0)
+				return;
+		}
+		close();
+	}
+
+	public synchronized long lastUsed() {
+		return lastUsed;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public boolean isActive() {
+		return !closed && failure == null && active.getAsBoolean();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine("Closing elevated connection");
+		resource.close();
+	}
+
+	private void checkFailure() throws Exception {
+		if (failure != null)
+			throw failure;
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				var frame = frames.read();
+				var received = System.nanoTime();
+				var cmd = frame.type();
+				var id = frame.id();
+
+				if (LOG.isLoggable(Level.FINE))
+					LOG.fine(MessageFormat.format("Got command {0} for {1}", cmd, id));
+
+				if (cmd == Helper.RESP_COMPLETE) {
+					var p = pending.remove(id);
+					if (p != null) {
+						var in = frame.payload();
+						var elapsed = 0L;
+						boolean ok;
+						Object obj;
+						try {
+							elapsed = in.readLong();
+							ok = in.readBoolean();
+							obj = codecs.read(in, p.loader(-1));
+							if (!ok)
+								obj = asError(obj);
+						} catch (Exception e) {
+							/* Including anything a codec throws, the caller must still be told */
+							ok = false;
+							obj = decodeFailure(e);
+						}
+						var decoded = System.nanoTime();
+						p.deliver(new Message(cmd, ok, obj));
+						record(p, received, elapsed, decoded);
+					}
+				} else if (cmd == Helper.RESP_EVENT) {
+					var p = pending.get(id);
+					if (p != null) {
+						try {
+							var in = frame.payload();
+							var index = in.readInt();
+							var count = in.readInt();
+							var loader = p.loader(index);
+							var events = new ArrayList<Object>(count);
+							for (int i = 0; i < count; i++)
+								events.add(codecs.read(in, loader));
+							p.deliver(new Message(cmd, true, events, index));
+						} catch (Exception e) {
+							/* Events cannot be silently lost, so fail the closure and stop it */
+							LOG.log(Level.WARNING, "Failed to decode events.", e);
+							try {
+								cancel(id);
+							} catch (IOException ioe) {
+								LOG.log(Level.WARNING, "Failed to cancel closure.", ioe);
+							}
+							if (pending.remove(id) != null)
+								p.deliver(new Message(Helper.RESP_COMPLETE, false, decodeFailure(e)));
+						}
+					}
+				} else if (cmd == Helper.RESP_BATCH) {
+					var p = pending.remove(id);
+					if (p != null) {
+						var in = frame.payload();
+						long elapsed;
+						List<BatchResult> results;
+						try {
+							elapsed = in.readLong();
+							results = readBatchResults(in, p);
+						} catch (Exception e) {
+							p.deliver(new Message(Helper.RESP_COMPLETE, false, decodeFailure(e)));
+							continue;
+						}
+						var decoded = System.nanoTime();
+						p.deliver(new Message(cmd, true, results));
+						record(p, received, elapsed, decoded);
+					}
+				} else if (cmd == Helper.RESP_INPUT_CREDIT) {
+					var p = pending.get(id);
+					if (p instanceof PipePending)
+						((PipePending) p).output.credit(frame.payload().readLong());
+				} else
+					throw new IOException("Unexpected response command. " + cmd);
+			}
+		} catch (Exception e) {
+			if (!closed && !(e instanceof EOFException))
+				LOG.log(Level.SEVERE, "Elevated connection failed.", e);
+			fail(e instanceof EOFException ? (EOFException) e
+					: (EOFException) new EOFException("Elevated helper connection lost.").initCause(e));
+		}
+	}
+
+	private void record(Pending p, long received, long executed, long decoded) {
+		var detail = p.detail();
+		var serialized = p.serialized;
+		spans.record(Phase.SERIALIZE, detail, Duration.ofNanos(serialized));
+		spans.record(Phase.TRANSIT, detail, Duration.ofNanos(Math.max(0, received - p.started - serialized - executed)));
+		spans.record(Phase.EXECUTE, detail, Duration.ofNanos(executed));
+		spans.record(Phase.DESERIALIZE, detail, Duration.ofNanos(decoded - received));
+	}
+
+	/**
+	 * An error sent by the helper is normally the exception itself, but is only a
+	 * description when the exception could not be encoded.
+	 */
+	private static Throwable asError(Object value) {
+		return value instanceof Throwable ? (Throwable) value : new IOException(String.valueOf(value));
+	}
+
+	private List<BatchResult> readBatchResults(DataInputStream in, Pending p) throws IOException {
+		var size = in.readInt();
+		var results = new ArrayList<BatchResult>(size);
+		for (int i = 0; i < size; i++) {
+			var status = BatchResult.Status.values()[in.readByte()];
+			if (status == BatchResult.Status.SKIPPED) {
+				results.add(BatchResult.skipped());
+			} else {
+				var data = new byte[in.readInt()];
+				in.readFully(data);
+				try {
+					var value = codecs.decode(data, p.loader(i));
+					results.add(status == BatchResult.Status.OK ? BatchResult.ok(value) : BatchResult.failed(asError(value)));
+				} catch (Exception e) {
+					results.add(BatchResult.failed(decodeFailure(e)));
+				}
+			}
+		}
+		return results;
+	}
+
+	private static IOException decodeFailure(Exception e) {
+		return e instanceof IOException ? (IOException) e : new IOException("Failed to decode response. " + e.getMessage(), e);
+	}
+
+	private static Exception asException(Throwable t) {
+		return t instanceof Exception ? (Exception) t : new Exception(t);
+	}
+
+	private void fail(EOFException eof) {
+		failure = eof;
+		for (var it = pending.values().iterator(); it.hasNext();) {
+			it.next().deliver(new Message(Helper.RESP_COMPLETE, false, eof));
+			it.remove();
+		}
+	}
+}
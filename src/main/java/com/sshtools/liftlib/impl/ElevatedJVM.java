@@ -16,37 +16,42 @@
 package com.sshtools.liftlib.impl;
 
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.ProcessBuilder.Redirect;
-import java.nio.channels.Channels;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
+import com.sshtools.liftlib.ElevatorListener.Phase;
 import com.sshtools.liftlib.Helper;
 import com.sshtools.liftlib.OS;
 import com.sshtools.liftlib.OS.Desktop;
 import com.sshtools.liftlib.RPC;
 import com.sshtools.liftlib.RPC.Endpoint;
 import com.sshtools.liftlib.RuntimePathProvider;
+import com.sshtools.liftlib.StartupTimings;
 
 public class ElevatedJVM implements Closeable {
 	
@@ -55,19 +60,25 @@ public class ElevatedJVM implements Closeable {
 	private final Process process; 
 	private boolean closed;
 	private final PlatformElevation elevation;
-	private final Semaphore lock = new Semaphore(1);
+	private final Duration connectTimeout;
 	private final Endpoint endpoint;
-	private final List<Path> removeFilesOnClose = new ArrayList<>();
 
-	private SocketChannel channel;
+	private ByteChannel channel;
 	private InputStream input;
 	private OutputStream output;
-	private boolean ready;
-	private Thread thread;;
+	private boolean detached;
+	private Thread thread;
+	private final long started;
+	private StartupTimings timings;
 
-	public ElevatedJVM(PlatformElevation elevation, boolean dev, List<RuntimePathProvider> pathProviders, Supplier<RPC> rpcSupplier, boolean forceClassPath) throws IOException {
+	public ElevatedJVM(PlatformElevation elevation, boolean dev, List<RuntimePathProvider> pathProviders, Supplier<RPC> rpcSupplier, boolean forceClassPath, Duration connectTimeout) throws IOException {
 		
+		started = System.nanoTime();
+		var spawnedEvent = Spans.isFlightRecorderInitialized() ? new HelperSpawnedEvent() : null;
+		if (spawnedEvent != null)
+			spawnedEvent.begin();
 		this.elevation = elevation;
+		this.connectTimeout = connectTimeout;
 
 		var vargs = new ArrayList<String>();
 		var modular = false;
@@ -95,7 +106,10 @@ public class ElevatedJVM implements Closeable {
     		if(Boolean.getBoolean("liftlib.debug")) {
     			vargs.add("-agentlib:jdwp=transport=dt_socket,server=y,suspend=y,address=127.0.0.1:" + System.getProperty("liftlib.debugPort", "8000"));
     		}
-    		var idx = new AtomicInteger(0);
+    		var jfr = System.getProperty("liftlib.jfr");
+    		if(jfr != null) {
+    			vargs.add("-XX:StartFlightRecording" + (jfr.isEmpty() ? "" : "=" + jfr));
+    		}
     
     		Set<String> mp = new LinkedHashSet<String>();
     		Set<String> cp = new LinkedHashSet<String>();
@@ -148,7 +162,7 @@ public class ElevatedJVM implements Closeable {
 	    				}
 	    			}
 	    			if(macDev) {
-	    				mp = fixMacClassDevelopmentPath(mp, idx);
+	    				mp = fixMacClassDevelopmentPath(mp);
 	    			}
 	    			vargs.add("-p");
 	    			vargs.add(makePathsAbsolute(mp));
@@ -157,13 +171,17 @@ public class ElevatedJVM implements Closeable {
     
     		if (!cp.isEmpty()) {
     			if(macDev) {
-    				cp = fixMacClassDevelopmentPath(cp, idx);
+    				cp = fixMacClassDevelopmentPath(cp);
     			}
     			
     			vargs.add("-classpath");
     			vargs.add(makePathsAbsolute(cp));
     		}
 
+    		if(Boolean.parseBoolean(System.getProperty("liftlib.cds", "true"))) {
+    			vargs.addAll(ClassDataSharing.options(cp, forceClassPath ? Set.of() : mp, modular ? "com.sshtools.liftlib/" + Helper.class.getName() : Helper.class.getName()));
+    		}
+
     		for(var ent : sp.entrySet()) {
                 vargs.add("-D" + ent.getKey() + "=" + ent.getValue());
     		}
@@ -220,52 +238,94 @@ public class ElevatedJVM implements Closeable {
 		builder.redirectInput(Redirect.INHERIT);
 		
 		if(macDev) {
-			var tmpPath = Paths.get("/tmp/liftlib/" + Integer.toUnsignedLong(hashCode()) + ".tmp");
-		    builder.directory(tmpPath.toFile());
+		    builder.directory(DevelopmentPathCache.root().toFile());
 		}
 
+		var prepared = System.nanoTime();
 		LOG.log(Level.INFO, "Helper Command: {0}, Elevator: {1}", new Object[] { String.join(" ", builder.command()), elevation.getClass().getName() });
 		elevation.elevate(builder);
 
 		LOG.log(Level.INFO, "Elevator Command: {0}", String.join(" ", builder.command()));
 		
 		process = builder.start();  // todo temp
-		try {
-			lock.acquire();
-		} catch (InterruptedException e) {
-			throw new IOException("Interrupted.", e);
-		}
+		var spawned = System.nanoTime();
+		var spawnedAt = System.currentTimeMillis();
+
+		/* The helper sends the time it started as soon as it connects */
+		var connected = new CompletableFuture<Long>();
 		thread = new Thread(() -> {
 			try {
 				LOG.log(Level.INFO, "Waiting for connection from helper");
-				channel = endpoint.accept();
+				channel = endpoint.acceptChannel();
+				input = ChannelStreams.input(channel);
+				output = ChannelStreams.output(channel);
+				connected.complete(new DataInputStream(input).readLong());
 				LOG.log(Level.INFO, "Got connection from helper");
-				input = Channels.newInputStream(channel);
-				output = Channels.newOutputStream(channel);
-				ready = true;
-				lock.release();
-			} catch (IOException ioe) {
-				if (!closed)
-					ioe.printStackTrace();
+			} catch (Throwable e) {
+				connected.completeExceptionally(e);
 			}
 		}, "ElevationChannel");
 		thread.start();
-		LOG.log(Level.INFO, "Waiting for helper to exit");
-		while (thread.isAlive()) {
-			try {
-				thread.join(1000);
-			} catch (InterruptedException e) {
-				throw new IOException("Interrupted.", e);
-			}
-			if (!isActive()) {
-				close();
+
+		/* On Windows the process is just the launcher, which exits straight away */
+		var exited = OS.isWindows() ? new CompletableFuture<Process>() : process.onExit();
+		var first = CompletableFuture.anyOf(connected, exited);
+		try {
+			if (connectTimeout.isZero())
+				first.get();
+			else
+				first.get(connectTimeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			process.destroy();
+			close();
+			throw new InterruptedIOException("Timed out waiting for helper to connect after " + connectTimeout.toMillis() + "ms.");
+		} catch (InterruptedException e) {
+			process.destroy();
+			close();
+			throw new IOException("Interrupted.", e);
+		} catch (ExecutionException e) {
+			/* Handled below */
+		}
+
+		if (!connected.isDone() || connected.isCompletedExceptionally()) {
+			close();
+			if (exited.isDone())
 				throw new EOFException("Failed to elevate, exit value " + process.exitValue());
-			} else if (ready) {
-				break;
-			}
+			var cause = connected.handle((v, ex) -> ex instanceof CompletionException ? ex.getCause() : ex).join();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Failed to connect to helper.", cause);
 		}
+
+		var authenticate = Math.max(0, connected.join() - spawnedAt);
+		var connect = Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - spawned) - authenticate);
+		timings = new StartupTimings(Duration.ofNanos(prepared - started), Duration.ofNanos(spawned - prepared), Duration.ofMillis(authenticate), Duration.ofMillis(connect));
+		var spans = Spans.current();
+		spans.record(Phase.CLASS_PATH, null, timings.classPath());
+		spans.record(Phase.SPAWN, null, timings.spawn());
+		spans.record(Phase.AUTHENTICATE, null, timings.authenticate());
+		spans.record(Phase.CONNECT, null, timings.connect());
+		
 		elevation.ready(); 
-		LOG.log(Level.INFO, "Helper exited cleanly ");
+		LOG.log(Level.INFO, "Helper ready, {0}", timings);
+
+		if (spawnedEvent != null)
+			spawnedEvent.end();
+		if (spawnedEvent != null && spawnedEvent.shouldCommit()) {
+			spawnedEvent.elevation = elevation.getClass().getSimpleName();
+			spawnedEvent.rpc = rpc.getClass().getSimpleName();
+			spawnedEvent.pid = process.pid();
+			spawnedEvent.commit();
+		}
+	}
+
+	/**
+	 * Get how long each phase of starting the helper took.
+	 *
+	 * @return timings
+	 */
+	public StartupTimings timings() {
+		return timings;
 	}
 
 	private String makePathsAbsolute(Set<String> mp) {
@@ -289,7 +349,7 @@ public class ElevatedJVM implements Closeable {
 		return false;
 	}
 
-	private Set<String> fixMacClassDevelopmentPath(Set<String> cp, AtomicInteger idx) throws IOException {
+	private Set<String> fixMacClassDevelopmentPath(Set<String> cp) throws IOException {
 		/* Argh. Work around for Mac OS and it's very restrictive permissions
 		 * system. As an administrator, even we can't read certain files
 		 * (without consent), but consent can never be given. 
@@ -297,34 +357,25 @@ public class ElevatedJVM implements Closeable {
 		 * https://eclecticlight.co/2020/02/15/why-privileged-commands-may-never-be-allowed/
 		 * is about the closest to some kind of explanation for this.
 		 */
-		var tmpPath = Paths.get("/tmp/liftlib/" + Integer.toUnsignedLong(hashCode()) + ".tmp");
-		Files.createDirectories(tmpPath);
-		var newPaths = new ArrayList<Path>();
+		var newPaths = new LinkedHashSet<String>();
 		for(var cpEl : cp) {
 			var path = Paths.get(cpEl);
-			if(Files.isRegularFile(path) && cpEl.toLowerCase().endsWith(".jar")) {
-				var target = tmpPath.resolve(path.getFileName());
-				Files.copy(path, target, StandardCopyOption.COPY_ATTRIBUTES);
-				removeFilesOnClose.add(target);
-				target.toFile().deleteOnExit();
-				newPaths.add(target);
-			}
-			else if(Files.isDirectory(path)) {
-				var target = tmpPath.resolve("dir" + (idx.getAndIncrement()));
-				Files.createDirectories(target);
-				OS.copy(path, target);
-				removeFilesOnClose.add(target);
-				target.toFile().deleteOnExit();
-				newPaths.add(target);
+			if((Files.isRegularFile(path) && cpEl.toLowerCase().endsWith(".jar")) || Files.isDirectory(path)) {
+				newPaths.add(DevelopmentPathCache.sync(path).toString());
 			}
 			else {
-				newPaths.add(path);
+				newPaths.add(cpEl);
 			}
 		}
-		cp = newPaths.stream().map(Path::toString).collect(Collectors.toSet());
-		removeFilesOnClose.add(tmpPath);
-		tmpPath.toFile().deleteOnExit();
-		return cp;
+		return newPaths;
+	}
+
+	/**
+	 * Leave the helper running when this is closed, e.g. because it is a daemon
+	 * that will be used by other elevators. Only the connection to it is closed.
+	 */
+	public void detach() {
+		detached = true;
 	}
 
 	public boolean isActive() {
@@ -337,26 +388,12 @@ public class ElevatedJVM implements Closeable {
 	public InputStream getInputStream() {
 		if (closed)
 			throw new IllegalStateException("Elevated JVM is already closed.");
-		if (!ready) {
-			try {
-				lock.acquire();
-			} catch (InterruptedException e) {
-				throw new IllegalStateException("Interrupted.", e);
-			}
-		}
 		return input;
 	}
 
 	public OutputStream getOutputStream() {
 		if (closed)
 			throw new IllegalStateException("Elevated JVM is already closed.");
-		if (!ready) {
-			try {
-				lock.acquire();
-			} catch (InterruptedException e) {
-				throw new IllegalStateException("Interrupted.", e);
-			}
-		}
 		return output;
 	}
 
@@ -365,6 +402,14 @@ public class ElevatedJVM implements Closeable {
 		if (!closed) {
 			LOG.info("Closing elevated JVM");
 			closed = true;
+			var closedEvent = Spans.isFlightRecorderInitialized() ? new HelperClosedEvent() : null;
+			if (closedEvent != null && closedEvent.isEnabled()) {
+				closedEvent.elevation = elevation.getClass().getSimpleName();
+				closedEvent.pid = process.pid();
+				closedEvent.detached = detached;
+				closedEvent.lifetime = System.nanoTime() - started;
+				closedEvent.commit();
+			}
 			if (thread != null) {
 				thread.interrupt();
 			}
@@ -379,7 +424,8 @@ public class ElevatedJVM implements Closeable {
 							channel.close();
 					} finally {
 						try {
-							process.waitFor();
+							if (!detached)
+								process.waitFor();
 						} catch (InterruptedException e) {
 							throw new IOException("Interrupted.", e);
 						} finally {
@@ -387,17 +433,7 @@ public class ElevatedJVM implements Closeable {
 								elevation.lower();
 							}
 							finally {
-								try {
-									endpoint.close();
-								}
-								finally {
-									for(var p : removeFilesOnClose) {
-										try {
-											Files.delete(p);
-										}
-										catch(Exception e) {}
-									}
-								}
+								endpoint.close();
 							}
 						}
 					}
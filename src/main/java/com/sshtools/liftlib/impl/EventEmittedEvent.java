@@ -0,0 +1,50 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event for a closure emitting an event in the helper. The
+ * duration is how long the closure was blocked waiting for the caller to
+ * request more events. As closures may emit very many events, by default only
+ * those that were blocked for at least a millisecond are recorded.
+ */
+@Name("com.sshtools.liftlib.EventEmitted")
+@Label("Event Emitted")
+@Category("LiftLib")
+@Description("A closure running in an elevated helper emitted an event")
+@StackTrace(false)
+@Threshold("1 ms")
+public final class EventEmittedEvent extends Event {
+
+	@Label("Event")
+	public String event;
+
+	@Label("Request ID")
+	public long id;
+
+	@Label("Size")
+	@DataAmount
+	public long size;
+}
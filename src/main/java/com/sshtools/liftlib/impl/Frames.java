@@ -0,0 +1,183 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Length prefixed binary framing used between an elevator and its helper. Each
+ * frame is a 4 byte length, followed by a 1 byte frame type, an 8 byte
+ * correlation id and the payload. Payloads are fully encoded before anything is
+ * written, so any number of threads may write frames without holding a lock
+ * while encoding, and a failure to encode never leaves a partial frame on the
+ * wire.
+ */
+public final class Frames implements Closeable {
+
+	private final static int HEADER = 9;
+
+	/**
+	 * The largest frame that will be read, see <code>liftlib.maxFrameSize</code>.
+	 * A larger length can only mean the stream is corrupt (or was never a stream
+	 * of frames), so fails rather than trying to allocate the memory.
+	 */
+	public final static int MAX_FRAME_SIZE = Integer.getInteger("liftlib.maxFrameSize", 256 * 1024 * 1024);
+
+	@FunctionalInterface
+	public interface Payload {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	public final static class Frame {
+		private final byte[] data;
+
+		private Frame(byte[] data) {
+			this.data = data;
+		}
+
+		public int type() {
+			return data[0] & 0xff;
+		}
+
+		public long id() {
+			long id = 0;
+			for (int i = 1; i < HEADER; i++)
+				id = (id << 8) | (data[i] & 0xff);
+			return id;
+		}
+
+		public int size() {
+			return data.length - HEADER;
+		}
+
+		public DataInputStream payload() {
+			return new DataInputStream(new ByteArrayInputStream(data, HEADER, data.length - HEADER));
+		}
+
+		public byte[] payloadBytes() {
+			return Arrays.copyOfRange(data, HEADER, data.length);
+		}
+	}
+
+	private final static class FrameBuffer extends ByteArrayOutputStream {
+		private FrameBuffer() {
+			super(256);
+			count = 4;
+		}
+
+		private void writeFrame(OutputStream out) throws IOException {
+			var len = count - 4;
+			buf[0] = (byte) (len >>> 24);
+			buf[1] = (byte) (len >>> 16);
+			buf[2] = (byte) (len >>> 8);
+			buf[3] = (byte) len;
+			out.write(buf, 0, count);
+		}
+	}
+
+	private final DataInputStream in;
+	private final OutputStream out;
+
+	public Frames(InputStream in, OutputStream out) {
+		this.in = new DataInputStream(in);
+		this.out = out;
+	}
+
+	/**
+	 * Get whether a payload is small enough to be sent in a single frame.
+	 *
+	 * @param size size of payload
+	 * @return fits
+	 */
+	public static boolean fits(long size) {
+		return size <= MAX_FRAME_SIZE - HEADER;
+	}
+
+	/**
+	 * Encode and write a single frame.
+	 *
+	 * @param type frame type
+	 * @param id correlation id
+	 * @param payload payload writer, or <code>null</code> for an empty payload
+	 * @throws IOException on error
+	 */
+	public void write(int type, long id, Payload payload) throws IOException {
+		var buf = new FrameBuffer();
+		var dout = new DataOutputStream(buf);
+		dout.writeByte(type);
+		dout.writeLong(id);
+		if (payload != null)
+			payload.write(dout);
+		dout.flush();
+		if (buf.size() - 4 > MAX_FRAME_SIZE)
+			throw new IOException("Frame of " + (buf.size() - 4) + " bytes exceeds the maximum of " + MAX_FRAME_SIZE + ".");
+		synchronized (out) {
+			/* Being interrupted while writing would close an interruptible channel, so hold any interrupt until the frame is written */
+			var interrupted = Thread.interrupted();
+			try {
+				buf.writeFrame(out);
+				out.flush();
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Interrupt a thread that may be writing frames, waiting until it is not
+	 * part way through writing one.
+	 *
+	 * @param thread thread
+	 */
+	public void interrupt(Thread thread) {
+		synchronized (out) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Read the next frame. Only a single thread should read frames.
+	 *
+	 * @return frame
+	 * @throws IOException on error, or {@link java.io.EOFException} when the other side closes
+	 */
+	public Frame read() throws IOException {
+		var len = in.readInt();
+		if (len < HEADER || len > MAX_FRAME_SIZE)
+			throw new IOException("Corrupt frame, length " + len);
+		var data = new byte[len];
+		in.readFully(data);
+		return new Frame(data);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for the connection to a helper being closed, and the
+ * helper exiting unless it is a daemon.
+ */
+@Name("com.sshtools.liftlib.HelperClosed")
+@Label("Helper Closed")
+@Category("LiftLib")
+@Description("An elevated helper was closed")
+@StackTrace(false)
+public final class HelperClosedEvent extends Event {
+
+	@Label("Elevation")
+	public String elevation;
+
+	@Label("Process ID")
+	public long pid;
+
+	@Label("Detached")
+	@Description("The helper is a daemon, and was left running")
+	public boolean detached;
+
+	@Label("Lifetime")
+	@Timespan(Timespan.NANOSECONDS)
+	public long lifetime;
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * A helper that outlives the application that started it, listening on a Unix
+ * domain socket so that later elevators, in the same or other processes, can
+ * attach to it rather than starting and authorizing a helper of their own.
+ * <p>
+ * Every connection is checked using the peer credentials of the socket. The
+ * daemon only serves the user that started it (and the administrator), and
+ * clients only attach to a daemon running as the expected elevated user, so
+ * neither side can be impersonated by another local user. The daemon exits
+ * once it has had no clients for the idle timeout.
+ */
+public final class HelperDaemon implements Closeable {
+	private final static Logger LOG = Logger.getLogger(HelperDaemon.class.getSimpleName());
+
+	/* Sent to a client once it has been admitted, a rejected client is just closed */
+	private final static byte ADMITTED = 1;
+
+	@FunctionalInterface
+	public interface Handler {
+		void handle(Frames frames) throws IOException;
+	}
+
+	/**
+	 * Attach to a running daemon.
+	 *
+	 * @param path path of daemon socket
+	 * @param user the user the daemon must be running as
+	 * @param timeout how long to wait to be admitted
+	 * @return connected channel, or empty if there is no usable daemon
+	 */
+	public static Optional<SocketChannel> connect(Path path, String user, Duration timeout) {
+		if (!Files.exists(path))
+			return Optional.empty();
+		try {
+			var channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+			try {
+				channel.connect(UnixDomainSocketAddress.of(path));
+				var peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED).user().getName();
+				if (!peer.equals(user)) {
+					LOG.warning(MessageFormat.format("Daemon at {0} is running as {1}, not {2}. Refusing to use it.", path, peer, user));
+					channel.close();
+					return Optional.empty();
+				}
+				var ack = readAdmission(channel, timeout);
+				if (ack != ADMITTED) {
+					LOG.warning(MessageFormat.format("Daemon at {0} refused connection.", path));
+					channel.close();
+					return Optional.empty();
+				}
+				return Optional.of(channel);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		} catch (Exception e) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "No usable daemon at " + path, e);
+			return Optional.empty();
+		}
+	}
+
+	/* A daemon that has hung must not block the caller forever */
+	private static int readAdmission(SocketChannel channel, Duration timeout) throws IOException {
+		var ack = ByteBuffer.allocate(1);
+		channel.configureBlocking(false);
+		try (var selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			var deadline = System.nanoTime() + timeout.toNanos();
+			while (true) {
+				var n = channel.read(ack);
+				if (n == 1)
+					return ack.get(0);
+				else if (n == -1)
+					return -1;
+				var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0)
+					throw new InterruptedIOException("Timed out waiting to be admitted by daemon after " + timeout.toMillis() + "ms.");
+				selector.select(remaining);
+			}
+		} finally {
+			/* Closing the selector deregisters the channel, so it may block again */
+			channel.configureBlocking(true);
+		}
+	}
+
+	private static boolean isListening(Path path) {
+		try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+			return channel.isConnected();
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	private final Path path;
+	private final Object fileKey;
+	private final String user;
+	private final int maxClients;
+	private final long idleTimeout;
+	private final Handler handler;
+	private final ServerSocketChannel server;
+	private final Thread acceptor;
+
+	private int clients;
+	private long idleSince = System.currentTimeMillis();
+	private volatile boolean closed;
+
+	/**
+	 * Start listening.
+	 *
+	 * @param path path of daemon socket, any existing file is replaced
+	 * @param user user allowed to connect, in addition to the administrator
+	 * @param maxClients maximum number of clients connected at once
+	 * @param idleTimeout how long to wait with no clients before exiting
+	 * @param handler handles the frames of each client
+	 * @throws IOException on error
+	 */
+	public HelperDaemon(Path path, String user, int maxClients, Duration idleTimeout, Handler handler) throws IOException {
+		this.path = path;
+		this.user = user;
+		this.maxClients = maxClients;
+		this.idleTimeout = idleTimeout.toMillis();
+		this.handler = handler;
+
+		try (var probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+			if (!probe.supportedOptions().contains(ExtendedSocketOptions.SO_PEERCRED))
+				throw new IOException("Daemon mode requires peer credentials, which are not supported on this platform.");
+		}
+
+		if (Files.exists(path)) {
+			if (isListening(path))
+				throw new IOException(MessageFormat.format("A daemon is already listening on {0}.", path));
+			/* Stale socket from a daemon that did not exit cleanly */
+			Files.deleteIfExists(path);
+		}
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(path));
+		fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+		/* Any local user may connect, peer credentials decide who is served */
+		path.toFile().setReadable(true, false);
+		path.toFile().setWritable(true, false);
+
+		acceptor = new Thread(this::acceptLoop, "LiftLibDaemon");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		LOG.info(MessageFormat.format("Daemon listening on {0} for {1}", path, user));
+	}
+
+	/**
+	 * Handle a client that is already connected, e.g. the application that
+	 * started the daemon. It counts towards the number of clients.
+	 *
+	 * @param frames frames
+	 * @throws IOException on error
+	 */
+	public void serve(Frames frames) throws IOException {
+		synchronized (this) {
+			clients++;
+		}
+		run(frames);
+	}
+
+	private void run(Frames frames) throws IOException {
+		try {
+			handler.handle(frames);
+		} catch (EOFException eof) {
+		} finally {
+			release();
+		}
+	}
+
+	private synchronized void release() {
+		clients--;
+		idleSince = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	/**
+	 * Block until there have been no clients for the idle timeout, or the daemon
+	 * is closed.
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (!closed) {
+			var now = System.currentTimeMillis();
+			if (clients == 0 && now - idleSince >= idleTimeout)
+				return;
+			wait(clients == 0 ? Math.max(1, idleSince + idleTimeout - now) : 0);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			server.close();
+		} finally {
+			/* Only remove the socket if it is still ours */
+			try {
+				if (Objects.equals(fileKey, Files.readAttributes(path, BasicFileAttributes.class).fileKey()))
+					Files.deleteIfExists(path);
+			} catch (NoSuchFileException nsfe) {
+			}
+		}
+	}
+
+	private void acceptLoop() {
+		while (!closed) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException ioe) {
+				if (!closed)
+					LOG.log(Level.SEVERE, "Daemon failed to accept client.", ioe);
+				return;
+			}
+			try {
+				var peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED).user().getName();
+				if (!peer.equals(user) && !peer.equals("root")) {
+					LOG.warning(MessageFormat.format("Rejected daemon client running as {0}.", peer));
+					channel.close();
+					continue;
+				}
+				synchronized (this) {
+					if (clients >= maxClients) {
+						LOG.warning(MessageFormat.format("Rejected daemon client, already serving {0} clients.", clients));
+						channel.close();
+						continue;
+					}
+					clients++;
+				}
+			} catch (IOException | RuntimeException e) {
+				LOG.log(Level.WARNING, "Failed to check daemon client.", e);
+				try {
+					channel.close();
+				} catch (IOException ioe) {
+				}
+				continue;
+			}
+			var thread = new Thread(() -> {
+				try {
+					channel.write(ByteBuffer.wrap(new byte[] { ADMITTED }));
+				} catch (IOException ioe) {
+					if (LOG.isLoggable(Level.FINE))
+						LOG.log(Level.FINE, "Daemon client went away.", ioe);
+					release();
+					return;
+				}
+				try (var frames = new Frames(ChannelStreams.input(channel), ChannelStreams.output(channel))) {
+					run(frames);
+				} catch (IOException ioe) {
+					if (LOG.isLoggable(Level.FINE))
+						LOG.log(Level.FINE, "Daemon client failed.", ioe);
+				}
+			}, "LiftLibDaemonClient");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The closure's end of a {@link com.sshtools.liftlib.ClosurePipe}. Chunks of
+ * input are queued as they are received, and as each is read the sender is
+ * told it may send that much more, so no more than the sender's window is ever
+ * held here. If the closure closes the stream early, any further input is
+ * discarded and credited straight back, so the sender is never left blocked.
+ */
+public final class InputPipe extends InputStream {
+
+	@FunctionalInterface
+	public interface Credit {
+		/**
+		 * Bytes have been read (or discarded), so the sender may send as many
+		 * more.
+		 *
+		 * @param bytes bytes
+		 * @throws IOException on error
+		 */
+		void credit(int bytes) throws IOException;
+	}
+
+	private final Deque<byte[]> chunks = new ArrayDeque<>();
+	private final Credit credit;
+
+	private byte[] current;
+	private int position;
+	private boolean eof;
+	private boolean closed;
+
+	public InputPipe(Credit credit) {
+		this.credit = credit;
+	}
+
+	/**
+	 * Queue a chunk of input.
+	 *
+	 * @param chunk chunk
+	 * @throws IOException on error
+	 */
+	public void receive(byte[] chunk) throws IOException {
+		synchronized (this) {
+			if (!closed) {
+				chunks.add(chunk);
+				notifyAll();
+				return;
+			}
+		}
+		credit.credit(chunk.length);
+	}
+
+	/**
+	 * There will be no more input.
+	 */
+	public synchronized void finish() {
+		eof = true;
+		notifyAll();
+	}
+
+	@Override
+	public int read() throws IOException {
+		var b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		int read;
+		int consumed = 0;
+		synchronized (this) {
+			while (current == null) {
+				if (closed)
+					throw new IOException("Closed.");
+				current = chunks.poll();
+				position = 0;
+				if (current == null) {
+					if (eof)
+						return -1;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for input.");
+					}
+				}
+			}
+			read = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, read);
+			position += read;
+			if (position == current.length) {
+				consumed = current.length;
+				current = null;
+			}
+		}
+		if (consumed > 0)
+			credit.credit(consumed);
+		return read;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		var available = current == null ? 0 : current.length - position;
+		for (var chunk : chunks)
+			available += chunk.length;
+		return available;
+	}
+
+	@Override
+	public void close() throws IOException {
+		int discarded = 0;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			if (current != null)
+				discarded += current.length;
+			for (var chunk : chunks)
+				discarded += chunk.length;
+			current = null;
+			chunks.clear();
+			notifyAll();
+		}
+		if (discarded > 0)
+			credit.credit(discarded);
+	}
+}
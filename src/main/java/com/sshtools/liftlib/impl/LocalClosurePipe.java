@@ -0,0 +1,89 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import com.sshtools.liftlib.ClosurePipe;
+import com.sshtools.liftlib.ElevatedClosure;
+
+/**
+ * A {@link ClosurePipe} that runs the closure in this JVM, on its own thread.
+ * Events are passed straight to the closure on that thread.
+ *
+ * @param <S> return type
+ * @param <E> event type
+ */
+public final class LocalClosurePipe<S extends Serializable, E extends Serializable> implements ClosurePipe<S> {
+
+	private final CompletableFuture<S> result = new CompletableFuture<>();
+	private final InputPipe input;
+	private final PipeOutput output;
+
+	public LocalClosurePipe(ElevatedClosure<S, E> closure) {
+		input = new InputPipe(bytes -> credit(bytes));
+		output = new PipeOutput(PipeOutput.WINDOW, (b, off, len) -> {
+			if (len == 0)
+				input.finish();
+			else
+				input.receive(Arrays.copyOfRange(b, off, off + len));
+		});
+		var thread = new Thread(() -> {
+			try {
+				result.complete(closure.call(new ElevatedClosure<S, E>() {
+					@Override
+					public void event(E event) {
+						closure.event(event);
+					}
+
+					@Override
+					public InputStream input() {
+						return input;
+					}
+
+					@Override
+					public S call(ElevatedClosure<S, E> proxy) throws Exception {
+						throw new UnsupportedOperationException();
+					}
+				}));
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+			} finally {
+				output.finish();
+			}
+		}, "LocalClosurePipe");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public OutputStream input() {
+		return output;
+	}
+
+	@Override
+	public CompletableFuture<S> result() {
+		return result;
+	}
+
+	private void credit(int bytes) {
+		output.credit(bytes);
+	}
+}
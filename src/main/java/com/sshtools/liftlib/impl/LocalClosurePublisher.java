@@ -0,0 +1,89 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+import com.sshtools.liftlib.ElevatedClosure;
+
+/**
+ * A {@link com.sshtools.liftlib.ClosurePublisher} that runs the closure in
+ * this JVM, on its own thread, blocking it whenever it emits an event that has
+ * not yet been requested.
+ *
+ * @param <S> return type
+ * @param <E> event type
+ */
+public final class LocalClosurePublisher<S extends Serializable, E extends Serializable> extends AbstractClosurePublisher<S, E> {
+
+	private long credits;
+
+	public LocalClosurePublisher(ElevatedClosure<S, E> closure, Executor executor) {
+		super(closure, executor);
+	}
+
+	@Override
+	protected void start() {
+		var thread = new Thread(() -> {
+			try {
+				complete(closure.call(new ElevatedClosure<S, E>() {
+					@Override
+					public void event(E event) {
+						awaitCredit();
+						emit(List.of(event));
+					}
+
+					@Override
+					public S call(ElevatedClosure<S, E> proxy) throws Exception {
+						throw new UnsupportedOperationException();
+					}
+				}), null);
+			} catch (Throwable t) {
+				complete(null, t);
+			}
+		}, "LocalClosurePublisher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	protected synchronized void onRequest(long n) {
+		credits = credits + n < 0 ? Long.MAX_VALUE : credits + n;
+		notifyAll();
+	}
+
+	@Override
+	protected synchronized void onCancel() {
+		credits = Long.MAX_VALUE;
+		notifyAll();
+	}
+
+	private synchronized void awaitCredit() {
+		while (credits == 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("Interrupted waiting for demand.");
+			}
+		}
+		if (credits != Long.MAX_VALUE)
+			credits--;
+	}
+}
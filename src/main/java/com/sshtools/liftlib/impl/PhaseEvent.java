@@ -0,0 +1,48 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for each phase reported to an
+ * {@link com.sshtools.liftlib.ElevatorListener}. The phase has already
+ * completed when the event is committed, so its length is in
+ * <code>elapsed</code> rather than the event's own duration.
+ */
+@Name("com.sshtools.liftlib.Phase")
+@Label("Elevation Phase")
+@Category("LiftLib")
+@Description("A phase of starting an elevated helper, or of running a closure in one")
+@StackTrace(false)
+public final class PhaseEvent extends Event {
+
+	@Label("Phase")
+	public String phase;
+
+	@Label("Detail")
+	public String detail;
+
+	@Label("Elapsed")
+	@Timespan(Timespan.NANOSECONDS)
+	public long elapsed;
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * The writing end of a {@link com.sshtools.liftlib.ClosurePipe}. Input is sent
+ * in chunks, each using up some of a window of bytes the closure's end has
+ * room for. Writes block when the window is used up, until the closure's end
+ * reads some input and credits it back.
+ */
+public final class PipeOutput extends OutputStream {
+
+	/**
+	 * Default number of bytes that may be sent ahead of the closure reading them.
+	 */
+	public final static int WINDOW = 256 * 1024;
+
+	private final static int MAX_CHUNK = 32 * 1024;
+
+	@FunctionalInterface
+	public interface Sender {
+		/**
+		 * Send a chunk of input, or if empty, the end of input.
+		 *
+		 * @param b bytes
+		 * @param off offset
+		 * @param len length
+		 * @throws IOException on error
+		 */
+		void send(byte[] b, int off, int len) throws IOException;
+	}
+
+	private final Sender sender;
+
+	private long window;
+	private boolean closed;
+	private boolean finished;
+
+	public PipeOutput(long window, Sender sender) {
+		this.window = window;
+		this.sender = sender;
+	}
+
+	/**
+	 * Allow more input to be sent.
+	 *
+	 * @param bytes bytes
+	 */
+	public synchronized void credit(long bytes) {
+		window = window + bytes < 0 ? Long.MAX_VALUE : window + bytes;
+		notifyAll();
+	}
+
+	/**
+	 * The closure has completed, so will read no more input. Any blocked or
+	 * future writes will fail.
+	 */
+	public synchronized void finish() {
+		finished = true;
+		notifyAll();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n;
+			synchronized (this) {
+				while (window == 0 && !finished && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for closure to read input.");
+					}
+				}
+				if (closed)
+					throw new IOException("Closed.");
+				if (finished)
+					throw new IOException("Closure has completed, and will read no more input.");
+				n = (int) Math.min(Math.min(len, window), MAX_CHUNK);
+				window -= n;
+			}
+			sender.send(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+			if (finished)
+				return;
+		}
+		sender.send(new byte[0], 0, 0);
+	}
+}
@@ -26,6 +26,7 @@ import static com.sshtools.liftlib.impl.PlatformElevation.isWhitespace;
 import static com.sshtools.liftlib.impl.PlatformElevation.restoreStty;
 import static com.sshtools.liftlib.impl.PlatformElevation.saveStty;
 
+import com.sshtools.liftlib.ElevatorListener.Phase;
 import com.sshtools.liftlib.OS;
 import com.sshtools.liftlib.OS.Desktop;
 import com.sshtools.liftlib.ui.AskPass;
@@ -49,6 +50,10 @@ public interface PlatformElevation {
 	final static Logger LOG = Logger.getLogger(PlatformElevation.class.getSimpleName());
 
 	static PlatformElevation forEnvironment(Optional<String> username, Optional<char[]> password) {
+		if (Boolean.getBoolean("liftlib.unelevated")) {
+			LOG.warning("Helpers will NOT be elevated, liftlib.unelevated is set. This should only be used for testing.");
+			return new Unelevated();
+		}
 		if (isLinux()) {
 			if (password.isPresent()) {
 				return new SudoFixedPasswordUser(password.get());
@@ -172,6 +177,24 @@ public interface PlatformElevation {
 		}
 	}
 
+	/**
+	 * A {@link PlatformElevation} that starts the helper as the current user,
+	 * without any privilege escalation. The helper is otherwise started and
+	 * communicated with in exactly the same way, so this allows everything
+	 * except the elevation itself to be exercised without a password or
+	 * administrator account, e.g. in benchmarks and CI. Selected by setting the
+	 * system property <code>liftlib.unelevated</code> to <code>true</code>.
+	 */
+	public static class Unelevated implements PlatformElevation {
+
+		Unelevated() {
+		}
+
+		@Override
+		public void elevate(ProcessBuilder builder) {
+		}
+	}
+
 	public static class SudoFixedPasswordUser extends AbstractProcessBuilderEffectiveUser implements PlatformElevation {
 		private char[] password;
 		private String username;
@@ -414,6 +437,15 @@ public interface PlatformElevation {
 	}
 
 	static String saveStty() {
+		var started = System.nanoTime();
+		try {
+			return doSaveStty();
+		} finally {
+			Spans.current().record(Phase.SAVE_STTY, null, started);
+		}
+	}
+
+	private static String doSaveStty() {
 		var pb = new ProcessBuilder("stty", "-g");
 		pb.redirectInput(Redirect.INHERIT);
 		pb.redirectError(Redirect.DISCARD);
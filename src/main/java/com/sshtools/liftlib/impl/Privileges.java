@@ -0,0 +1,197 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.OS;
+
+/**
+ * Whether this process has administrator privileges, and whether it got them
+ * by elevating from a user who logged in as someone else. This is worked out
+ * once and remembered, as privileges do not normally change during the life of
+ * a process. {@link #refresh()} may be used if they might have.
+ * <p>
+ * On Linux, the effective user ID is read from <code>/proc/self/status</code>
+ * and the user ID that logged in from <code>/proc/self/loginuid</code>, so no
+ * process needs to be run. Elsewhere, or if these are not available, the
+ * older checks are used.
+ */
+public final class Privileges {
+	final static Logger LOG = Logger.getLogger(Privileges.class.getSimpleName());
+
+	/* Value of loginuid when the process is not part of a login session */
+	private final static long NO_LOGIN = 4294967295L;
+
+	private final static Path STATUS = Paths.get("/proc/self/status");
+	private final static Path LOGIN_UID = Paths.get("/proc/self/loginuid");
+
+	private static volatile Privileges current;
+
+	/**
+	 * Get the privileges of this process.
+	 *
+	 * @return privileges
+	 * @throws UnsupportedOperationException if not supported on this platform
+	 */
+	public static Privileges get() {
+		var privileges = current;
+		if (privileges == null) {
+			privileges = probe();
+			current = privileges;
+		}
+		return privileges;
+	}
+
+	/**
+	 * Work out the privileges of this process again.
+	 *
+	 * @return privileges
+	 * @throws UnsupportedOperationException if not supported on this platform
+	 */
+	public static Privileges refresh() {
+		var privileges = probe();
+		current = privileges;
+		return privileges;
+	}
+
+	private final boolean administrator;
+	private final boolean elevated;
+	private final boolean elevationKnown;
+
+	private Privileges(boolean administrator, boolean elevated, boolean elevationKnown) {
+		this.administrator = administrator;
+		this.elevated = elevated;
+		this.elevationKnown = elevationKnown;
+	}
+
+	public boolean administrator() {
+		return administrator;
+	}
+
+	/**
+	 * Get if elevated from a different user that logged in. A process that is
+	 * not running as an administrator is never elevated.
+	 *
+	 * @return elevated
+	 * @throws UnsupportedOperationException if this is an administrator and
+	 *                                       elevation cannot be determined on
+	 *                                       this platform
+	 */
+	public boolean elevated() {
+		if (!administrator)
+			return false;
+		if (!elevationKnown)
+			throw new UnsupportedOperationException();
+		return elevated;
+	}
+
+	@Override
+	public String toString() {
+		return "Privileges [administrator=" + administrator + ", elevated=" + (!administrator || elevationKnown ? elevated : "unknown") + "]";
+	}
+
+	private static Privileges probe() {
+		Privileges privileges;
+		if (OS.isWindows()) {
+			privileges = new Privileges(canWriteProgramFiles(), false, false);
+		} else if (OS.isLinux()) {
+			var euid = effectiveUid();
+			var administrator = euid == -1 ? isAdministratorUser() : euid == 0;
+			privileges = new Privileges(administrator, administrator && isLoginElevated(), true);
+		} else if (OS.isUnixLike()) {
+			privileges = new Privileges(isAdministratorUser(), false, false);
+		} else {
+			throw new UnsupportedOperationException();
+		}
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine(String.format("Probed %s", privileges));
+		return privileges;
+	}
+
+	private static boolean isAdministratorUser() {
+		return OS.getAdministratorUsername().equals(System.getProperty("user.name"));
+	}
+
+	private static boolean isLoginElevated() {
+		try {
+			var loginUid = Long.parseLong(Files.readString(LOGIN_UID, StandardCharsets.US_ASCII).trim());
+			return loginUid != 0 && loginUid != NO_LOGIN;
+		} catch (IOException | NumberFormatException e) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "Cannot read login UID, using logname.", e);
+			return isLognameElevated();
+		}
+	}
+
+	private static long effectiveUid() {
+		/* Uid: real effective saved filesystem */
+		try (var lines = Files.lines(STATUS, StandardCharsets.US_ASCII)) {
+			return lines.filter(l -> l.startsWith("Uid:"))
+					.map(l -> Long.parseLong(l.split("\\s+")[2]))
+					.findFirst().orElse(-1L);
+		} catch (IOException | RuntimeException e) {
+			if (LOG.isLoggable(Level.FINE))
+				LOG.log(Level.FINE, "Cannot read user ID.", e);
+			return -1;
+		}
+	}
+
+	private static boolean isLognameElevated() {
+		try {
+			var pb = new ProcessBuilder("logname");
+			var p = pb.start();
+			try (var rdr = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+				var ln = rdr.readLine();
+				if(ln == null || ln.equals("") || ln.equals("root") || ln.endsWith("no login name")) {
+					return false;
+				}
+				return !OS.getAdministratorUsername().equals(ln);
+			}
+		} catch (Exception e) {
+		}
+		return false;
+	}
+
+	private static boolean canWriteProgramFiles() {
+		try {
+			String programFiles = System.getenv("ProgramFiles");
+			if (programFiles == null) {
+				programFiles = "C:\\Program Files";
+			}
+			File temp = new File(programFiles, UUID.randomUUID().toString() + ".txt");
+			temp.deleteOnExit();
+			if (temp.createNewFile()) {
+				temp.delete();
+				return true;
+			} else {
+				return false;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sshtools.liftlib.OS;
+import com.sshtools.liftlib.RPC;
+
+/**
+ * {@link RPC} over a memory mapped file shared by the caller and the helper,
+ * avoiding the kernel socket stack entirely once connected. The file holds a
+ * small header followed by two single producer, single consumer ring buffers,
+ * one for each direction. Read and write positions are published with
+ * acquire / release ordering, and a waiting side spins briefly before backing
+ * off to parking, so there is no system call per frame while traffic is
+ * flowing. This is not zero-copy, frames are still copied into the mapping by
+ * the writer and out of it by the reader.
+ * <p>
+ * The file is created readable and writable by its owner only (on Linux in
+ * <code>/dev/shm</code> when available), so this transport is only suitable
+ * when the helper runs as an administrator, or as the same user. Because it
+ * trades some idle CPU and wake up latency for throughput, it is never
+ * selected by default, and must be requested using
+ * <code>-Dliftlib.rpc=com.sshtools.liftlib.impl.SHMRPC</code> or
+ * {@link com.sshtools.liftlib.Elevator.ElevatorBuilder#withRPC(java.util.function.Supplier)}.
+ * As there is no socket, only {@link RPC#connectChannel(String)} and
+ * {@link RPC.Endpoint#acceptChannel()} are supported.
+ * The size of each ring may be set using <code>liftlib.shm.capacity</code>,
+ * which must be a power of 2.
+ */
+public class SHMRPC implements RPC {
+
+	private final static long MAGIC = 0x4c49465453484d31L;
+
+	private final static int MAGIC_OFFSET = 0;
+	private final static int CAPACITY_OFFSET = 8;
+	private final static int CALLER_PID_OFFSET = 16;
+	private final static int HELPER_PID_OFFSET = 24;
+
+	/* Each ring header has its positions on separate cache lines */
+	private final static int RING_OFFSET = 64;
+	private final static int RING_HEADER = 256;
+	private final static int TAIL = 0;
+	private final static int HEAD = 64;
+	private final static int WRITER_CLOSED = 128;
+	private final static int READER_CLOSED = 192;
+
+	private final static int DATA_OFFSET = 4096;
+
+	private final static int SPINS = 1000;
+	private final static long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(1);
+	private final static long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+	private final static long LIVENESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private final static VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	@Override
+	public SocketChannel connect(String helperPath) throws IOException {
+		throw new UnsupportedOperationException("Shared memory is not a socket.");
+	}
+
+	@Override
+	public ByteChannel connectChannel(String helperPath) throws IOException {
+		MappedByteBuffer map;
+		try (var fc = FileChannel.open(Paths.get(helperPath), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (fc.size() < DATA_OFFSET)
+				throw new IOException("Shared memory file " + helperPath + " is too small.");
+			map = fc.map(MapMode.READ_WRITE, 0, fc.size());
+		}
+		if ((long) LONGS.getAcquire(map, MAGIC_OFFSET) != MAGIC)
+			throw new IOException("Shared memory file " + helperPath + " is not a LiftLib endpoint.");
+		var capacity = (int) (long) LONGS.get(map, CAPACITY_OFFSET);
+		if (map.capacity() != DATA_OFFSET + 2L * capacity)
+			throw new IOException("Shared memory file " + helperPath + " has the wrong size.");
+
+		var channel = new SharedMemoryChannel(map, new Ring(map, 1, capacity), new Ring(map, 0, capacity), CALLER_PID_OFFSET);
+		LONGS.setRelease(map, HELPER_PID_OFFSET, ProcessHandle.current().pid());
+		return channel;
+	}
+
+	@Override
+	public Endpoint endpoint() throws IOException {
+		var capacity = Integer.getInteger("liftlib.shm.capacity", 1024 * 1024);
+		if (capacity < 1024 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("liftlib.shm.capacity must be a power of 2, and at least 1024.");
+
+		var path = createFile();
+		path.toFile().deleteOnExit();
+		MappedByteBuffer map;
+		try (var fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			map = fc.map(MapMode.READ_WRITE, 0, DATA_OFFSET + 2L * capacity);
+		}
+		LONGS.set(map, CAPACITY_OFFSET, (long) capacity);
+		LONGS.set(map, CALLER_PID_OFFSET, ProcessHandle.current().pid());
+		LONGS.setRelease(map, MAGIC_OFFSET, MAGIC);
+
+		return new RPC.Endpoint() {
+			private volatile boolean closed;
+			private boolean accepted;
+
+			@Override
+			public void close() throws IOException {
+				closed = true;
+				Files.deleteIfExists(path);
+			}
+
+			@Override
+			public String uri() {
+				return path.toString();
+			}
+
+			@Override
+			public SocketAddress address() {
+				return null;
+			}
+
+			@Override
+			public SocketChannel accept() throws IOException {
+				throw new UnsupportedOperationException("Shared memory is not a socket.");
+			}
+
+			@Override
+			public synchronized ByteChannel acceptChannel() throws IOException {
+				if (accepted)
+					throw new IOException("Shared memory endpoints accept a single connection.");
+				var idle = new Backoff();
+				while ((long) LONGS.getAcquire(map, HELPER_PID_OFFSET) == 0) {
+					if (closed)
+						throw new AsynchronousCloseException();
+					if (Thread.interrupted())
+						throw new ClosedByInterruptException();
+					idle.pause();
+				}
+				accepted = true;
+				return new SharedMemoryChannel(map, new Ring(map, 0, capacity), new Ring(map, 1, capacity), HELPER_PID_OFFSET);
+			}
+		};
+	}
+
+	@Override
+	public int weight() {
+		return 30;
+	}
+
+	private static Path createFile() throws IOException {
+		var shm = Paths.get("/dev/shm");
+		var dir = OS.isLinux() && Files.isDirectory(shm) && Files.isWritable(shm) ? shm : null;
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			var attr = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+			return dir == null ? Files.createTempFile("elv", ".shm", attr) : Files.createTempFile(dir, "elv", ".shm", attr);
+		} else {
+			return dir == null ? Files.createTempFile("elv", ".shm") : Files.createTempFile(dir, "elv", ".shm");
+		}
+	}
+
+	/**
+	 * Spin, then park for progressively longer, while waiting for the other side.
+	 */
+	private final static class Backoff {
+		private int spins;
+		private long park = MIN_PARK;
+
+		void pause() {
+			if (spins < SPINS) {
+				spins++;
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(park);
+				park = Math.min(park * 2, MAX_PARK);
+			}
+		}
+	}
+
+	/**
+	 * One direction of a connection. Positions only ever increase, the offset
+	 * into the data area is the position modulo the capacity.
+	 */
+	private final static class Ring {
+		private final MappedByteBuffer map;
+		private final int header;
+		private final int data;
+		private final int capacity;
+
+		private Ring(MappedByteBuffer map, int index, int capacity) {
+			this.map = map;
+			this.capacity = capacity;
+			header = RING_OFFSET + (index * RING_HEADER);
+			data = DATA_OFFSET + (index * capacity);
+		}
+
+		long tail() {
+			return (long) LONGS.getAcquire(map, header + TAIL);
+		}
+
+		void tail(long tail) {
+			LONGS.setRelease(map, header + TAIL, tail);
+		}
+
+		long head() {
+			return (long) LONGS.getAcquire(map, header + HEAD);
+		}
+
+		void head(long head) {
+			LONGS.setRelease(map, header + HEAD, head);
+		}
+
+		boolean writerClosed() {
+			return (long) LONGS.getAcquire(map, header + WRITER_CLOSED) != 0;
+		}
+
+		void closeWriter() {
+			LONGS.setRelease(map, header + WRITER_CLOSED, 1L);
+		}
+
+		boolean readerClosed() {
+			return (long) LONGS.getAcquire(map, header + READER_CLOSED) != 0;
+		}
+
+		void closeReader() {
+			LONGS.setRelease(map, header + READER_CLOSED, 1L);
+		}
+
+		void copyOut(long position, ByteBuffer dst, int len) {
+			var offset = (int) (position & (capacity - 1));
+			var first = Math.min(len, capacity - offset);
+			dst.put(map.slice(data + offset, first));
+			if (first < len)
+				dst.put(map.slice(data, len - first));
+		}
+
+		void copyIn(long position, ByteBuffer src, int len) {
+			var offset = (int) (position & (capacity - 1));
+			var first = Math.min(len, capacity - offset);
+			map.put(data + offset, src, src.position(), first);
+			if (first < len)
+				map.put(data, src, src.position() + first, len - first);
+			src.position(src.position() + len);
+		}
+	}
+
+	private final static class SharedMemoryChannel implements ByteChannel {
+		private final MappedByteBuffer map;
+		private final Ring out;
+		private final Ring in;
+		private final int peerPidOffset;
+
+		private volatile boolean open = true;
+		private volatile boolean peerGone;
+		private volatile long peerChecked = System.nanoTime();
+
+		private SharedMemoryChannel(MappedByteBuffer map, Ring out, Ring in, int peerPidOffset) {
+			this.map = map;
+			this.out = out;
+			this.in = in;
+			this.peerPidOffset = peerPidOffset;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (open) {
+				open = false;
+				out.closeWriter();
+				in.closeReader();
+			}
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			checkOpen();
+			if (!dst.hasRemaining())
+				return 0;
+			var idle = new Backoff();
+			var head = in.head();
+			while (true) {
+				var available = in.tail() - head;
+				if (available > 0) {
+					var len = (int) Math.min(available, dst.remaining());
+					in.copyOut(head, dst, len);
+					in.head(head + len);
+					return len;
+				}
+				if (in.writerClosed() || peerGone()) {
+					if (in.tail() == head)
+						return -1;
+				} else {
+					waitFor(idle);
+				}
+			}
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			checkOpen();
+			var total = src.remaining();
+			var idle = new Backoff();
+			var tail = out.tail();
+			while (src.hasRemaining()) {
+				if (out.readerClosed())
+					throw new IOException("Broken pipe");
+				var free = out.capacity - (tail - out.head());
+				if (free > 0) {
+					var len = (int) Math.min(free, src.remaining());
+					out.copyIn(tail, src, len);
+					tail += len;
+					out.tail(tail);
+					idle = new Backoff();
+				} else if (peerGone()) {
+					throw new IOException("Broken pipe");
+				} else {
+					waitFor(idle);
+				}
+			}
+			return total;
+		}
+
+		private void waitFor(Backoff idle) throws IOException {
+			if (!open)
+				throw new AsynchronousCloseException();
+			if (Thread.interrupted()) {
+				close();
+				throw new ClosedByInterruptException();
+			}
+			idle.pause();
+		}
+
+		private void checkOpen() throws ClosedChannelException {
+			if (!open)
+				throw new ClosedChannelException();
+		}
+
+		/*
+		 * A peer that dies cannot mark its side closed, so while waiting
+		 * periodically check it is still running.
+		 */
+		private boolean peerGone() {
+			if (!peerGone) {
+				var now = System.nanoTime();
+				if (now - peerChecked > LIVENESS_INTERVAL) {
+					peerChecked = now;
+					var pid = (long) LONGS.getAcquire(map, peerPidOffset);
+					if (pid != 0)
+						peerGone = ProcessHandle.of(pid).map(p -> !p.isAlive()).orElse(true);
+				}
+			}
+			return peerGone;
+		}
+	}
+}
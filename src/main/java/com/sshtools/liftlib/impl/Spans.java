@@ -0,0 +1,158 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jdk.jfr.FlightRecorder;
+
+import com.sshtools.liftlib.ElevatorListener;
+import com.sshtools.liftlib.ElevatorListener.Phase;
+
+/**
+ * Reports phase timings to an elevator's listeners and as Flight Recorder
+ * events. Code that has no elevator of its own to hand, such as the static
+ * helpers in {@link com.sshtools.liftlib.OS}, reports to {@link #current()},
+ * which is the elevator currently starting a helper on this thread (if any).
+ */
+public final class Spans {
+	final static Logger LOG = Logger.getLogger(Spans.class.getSimpleName());
+
+	/**
+	 * Restores the previous current spans when closed.
+	 */
+	public interface Scope extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	private final static Spans NONE = new Spans(List.of());
+	private final static ThreadLocal<Spans> CURRENT = new ThreadLocal<>();
+
+	private static volatile Duration osInit;
+
+	/**
+	 * Get the spans for the elevator currently starting a helper on this thread,
+	 * or a default that only records Flight Recorder events.
+	 *
+	 * @return spans
+	 */
+	public static Spans current() {
+		var spans = CURRENT.get();
+		return spans == null ? NONE : spans;
+	}
+
+	/**
+	 * Get if Flight Recorder has been initialised, which it is as soon as any
+	 * recording is started. Until then, creating any event is expensive (it
+	 * initialises Flight Recorder), and pointless, so should be avoided. Once
+	 * initialised, events are cheap to create, and whether one is actually being
+	 * recorded is up to the event itself.
+	 *
+	 * @return initialised
+	 */
+	public static boolean isFlightRecorderInitialized() {
+		return FlightRecorder.isInitialized();
+	}
+
+	/**
+	 * Record how long looking up the administrator user for
+	 * {@link com.sshtools.liftlib.OS} took. This may happen before any elevator
+	 * exists, or on another thread, so is also reported to each other
+	 * elevator's listeners when it first starts a helper.
+	 *
+	 * @param startNanos value of {@link System#nanoTime()} at start
+	 */
+	public static void osInitialized(long startNanos) {
+		var duration = Duration.ofNanos(System.nanoTime() - startNanos);
+		osInit = duration;
+		var spans = current();
+		spans.reportedInit.set(true);
+		spans.record(Phase.OS_INIT, null, duration);
+	}
+
+	private final List<ElevatorListener> listeners;
+	private final AtomicBoolean reportedInit = new AtomicBoolean();
+
+	public Spans(List<ElevatorListener> listeners) {
+		this.listeners = listeners;
+	}
+
+	/**
+	 * Make this the current spans for this thread until the returned scope is
+	 * closed.
+	 *
+	 * @return scope
+	 */
+	public Scope enter() {
+		var was = CURRENT.get();
+		CURRENT.set(this);
+		var init = osInit;
+		if (init != null && !listeners.isEmpty() && !reportedInit.getAndSet(true))
+			notify(Phase.OS_INIT, null, init);
+		return () -> {
+			if (was == null)
+				CURRENT.remove();
+			else
+				CURRENT.set(was);
+		};
+	}
+
+	/**
+	 * Record a phase that started at the given time and has just ended.
+	 *
+	 * @param phase phase
+	 * @param detail detail or <code>null</code>
+	 * @param startNanos value of {@link System#nanoTime()} at start
+	 */
+	public void record(Phase phase, String detail, long startNanos) {
+		record(phase, detail, Duration.ofNanos(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Record a phase.
+	 *
+	 * @param phase phase
+	 * @param detail detail or <code>null</code>
+	 * @param duration duration
+	 */
+	public void record(Phase phase, String detail, Duration duration) {
+		if (isFlightRecorderInitialized()) {
+			var event = new PhaseEvent();
+			if (event.isEnabled()) {
+				event.phase = phase.name();
+				event.detail = detail;
+				event.elapsed = duration.toNanos();
+				event.commit();
+			}
+		}
+		notify(phase, detail, duration);
+	}
+
+	private void notify(Phase phase, String detail, Duration duration) {
+		for (var listener : listeners) {
+			try {
+				listener.span(phase, detail, duration);
+			} catch (RuntimeException re) {
+				LOG.log(Level.WARNING, "Listener failed.", re);
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sshtools.liftlib.OS.CopyFlag;
+import com.sshtools.liftlib.OS.CopyListener;
+import com.sshtools.liftlib.OS.CopyStatistics;
+
+/**
+ * Implementation of {@link com.sshtools.liftlib.OS#copy(Path, Path, CopyListener, CopyFlag...)}.
+ * Each directory is a task, which forks a task for each sub-directory, and
+ * splits large directories into chunks of files.
+ */
+public final class TreeCopier {
+	final static Logger LOG = Logger.getLogger(TreeCopier.class.getSimpleName());
+
+	private final static int CHUNK = 64;
+
+	private final Path source;
+	private final Path target;
+	private final CopyListener listener;
+	private final boolean parallel;
+	private final boolean skipUnchanged;
+	private final AtomicBoolean link;
+
+	private final LongAdder files = new LongAdder();
+	private final LongAdder linked = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final LongAdder directories = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	public TreeCopier(Path source, Path target, CopyListener listener, CopyFlag... flags) {
+		var flagList = Arrays.asList(flags);
+		this.source = source;
+		this.target = target;
+		this.listener = listener;
+		this.parallel = flagList.contains(CopyFlag.PARALLEL);
+		this.skipUnchanged = flagList.contains(CopyFlag.SKIP_UNCHANGED);
+		this.link = new AtomicBoolean(flagList.contains(CopyFlag.HARD_LINK));
+	}
+
+	public CopyStatistics copy() throws IOException {
+		var started = System.nanoTime();
+		Files.createDirectories(target);
+		var root = new DirectoryTask(source, target);
+		if (parallel) {
+			var pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+			try {
+				pool.invoke(root);
+			} catch (UncheckedIOException uioe) {
+				throw uioe.getCause();
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			root.copyDirectory();
+		}
+		return new CopyStatistics(files.sum(), linked.sum(), skipped.sum(), directories.sum(), bytes.sum(),
+				Duration.ofNanos(System.nanoTime() - started));
+	}
+
+	private final class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path from;
+		private final Path to;
+
+		private DirectoryTask(Path from, Path to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				copyDirectory();
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		private void copyDirectory() throws IOException {
+			directories.increment();
+			var dirs = new ArrayList<Path>();
+			var fileList = new ArrayList<Path>();
+			try (var stream = Files.newDirectoryStream(from)) {
+				for (var path : stream) {
+					if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+						dirs.add(path);
+					else
+						fileList.add(path);
+				}
+			}
+
+			if (parallel) {
+				var tasks = new ArrayList<RecursiveAction>();
+				for (var dir : dirs) {
+					var dest = to.resolve(dir.getFileName().toString());
+					Files.createDirectories(dest);
+					tasks.add(new DirectoryTask(dir, dest));
+				}
+				for (int i = CHUNK; i < fileList.size(); i += CHUNK)
+					tasks.add(new FilesTask(fileList.subList(i, Math.min(fileList.size(), i + CHUNK)), to));
+				for (var task : tasks)
+					task.fork();
+				copyFiles(fileList.subList(0, Math.min(CHUNK, fileList.size())), to);
+				for (int i = tasks.size() - 1; i >= 0; i--)
+					tasks.get(i).join();
+			} else {
+				copyFiles(fileList, to);
+				for (var dir : dirs) {
+					var dest = to.resolve(dir.getFileName().toString());
+					Files.createDirectories(dest);
+					new DirectoryTask(dir, dest).copyDirectory();
+				}
+			}
+		}
+	}
+
+	private final class FilesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Path> fileList;
+		private final Path to;
+
+		private FilesTask(List<Path> fileList, Path to) {
+			this.fileList = fileList;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				copyFiles(fileList, to);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+
+	private void copyFiles(List<Path> fileList, Path to) throws IOException {
+		for (var file : fileList)
+			copyFile(file, to.resolve(file.getFileName().toString()));
+	}
+
+	private void copyFile(Path file, Path dest) throws IOException {
+		var attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		var exists = Files.exists(dest, LinkOption.NOFOLLOW_LINKS);
+		if (exists && skipUnchanged) {
+			var destAttrs = Files.readAttributes(dest, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			/* Copies do not always keep the full precision */
+			if (destAttrs.isRegularFile() && destAttrs.size() == attrs.size()
+					&& destAttrs.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis()) {
+				skipped.increment();
+				return;
+			}
+		}
+
+		/* Write alongside and move into place, so the replacement is atomic */
+		var tmp = exists ? dest.resolveSibling(dest.getFileName() + ".tmp") : dest;
+		var wasLinked = false;
+		if (link.get()) {
+			try {
+				Files.deleteIfExists(tmp);
+				Files.createLink(tmp, file);
+				wasLinked = true;
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				if (LOG.isLoggable(Level.FINE))
+					LOG.log(Level.FINE, "Cannot link files, copying instead.", e);
+				link.set(false);
+			}
+		}
+		if (!wasLinked)
+			Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+		if (exists)
+			Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		files.increment();
+		if (wasLinked)
+			linked.increment();
+		bytes.add(attrs.size());
+		if (listener != null)
+			listener.copied(file, dest, attrs.size());
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The executor closures are run on in the helper, shared by every caller it
+ * serves. By default this is a pool of at most
+ * <code>liftlib.helperThreads</code> platform threads, and further closures
+ * wait for a free thread. On Java 21 and later, setting
+ * <code>liftlib.virtualThreads</code> to <code>true</code> gives each closure
+ * a virtual thread of its own instead. This is not the default, as closures
+ * waiting for event credit or input do so in <code>synchronized</code> blocks,
+ * which pin their carrier threads before Java 24.
+ */
+public final class Workers {
+	private final static Logger LOG = Logger.getLogger(Workers.class.getSimpleName());
+
+	private final static class Default {
+		private final static ExecutorService EXECUTOR = create();
+	}
+
+	private Workers() {
+	}
+
+	public static ExecutorService get() {
+		return Default.EXECUTOR;
+	}
+
+	private static ExecutorService create() {
+		if (Boolean.parseBoolean(System.getProperty("liftlib.virtualThreads", "false"))) {
+			try {
+				/* Reflection, as this is built for Java 17 */
+				var builderClass = Class.forName("java.lang.Thread$Builder");
+				var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "ElevatedWorker-", 0L);
+				var factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+				var executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+				if (LOG.isLoggable(Level.FINE))
+					LOG.fine("Running closures on virtual threads.");
+				return executor;
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				/* Before Java 21, or a preview release without preview features enabled */
+			}
+		}
+		var threads = Integer.getInteger("liftlib.helperThreads", Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+		if (LOG.isLoggable(Level.FINE))
+			LOG.fine("Running closures on a pool of up to " + threads + " threads.");
+		var pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			var t = new Thread(r, "ElevatedWorker");
+			t.setDaemon(true);
+			return t;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+}
@@ -14,7 +14,12 @@
  * limitations under the License.
  */
 
+import com.sshtools.liftlib.Codec;
 import com.sshtools.liftlib.RPC;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands;
+import com.sshtools.liftlib.commands.ElevatedFiles;
+import com.sshtools.liftlib.commands.ElevatedPreferences;
+import com.sshtools.liftlib.impl.SHMRPC;
 import com.sshtools.liftlib.impl.TCPRPC;
 import com.sshtools.liftlib.impl.UDSRPC;
 
@@ -23,10 +28,33 @@ open module com.sshtools.liftlib {
 	exports com.sshtools.liftlib.commands;
 	requires java.desktop;
 	requires java.logging;
+	requires jdk.jfr;
+	requires jdk.net;
 	requires static org.graalvm.sdk;
     requires static uk.co.bithatch.nativeimage.annotations;
 	requires transitive java.prefs;
 	
 	uses RPC;
-	provides RPC with UDSRPC, TCPRPC;
+	provides RPC with UDSRPC, TCPRPC, SHMRPC;
+	
+	uses Codec;
+	provides Codec with ElevatableSystemCommands.BasicRunCodec, 
+						ElevatableSystemCommands.WithResultCodec,
+						ElevatableSystemCommands.OutputCodec,
+						ElevatableSystemCommands.SilentOutputCodec,
+						ElevatableSystemCommands.PipeToCodec,
+						ElevatableSystemCommands.StreamOutputCodec,
+						ElevatableSystemCommands.ConsumeBytesCodec,
+						ElevatableSystemCommands.PipeCodec,
+						ElevatableSystemCommands.OutputChunkCodec,
+						ElevatableSystemCommands.WithConsumeCodec,
+						ElevatedPreferences.GetValueCodec,
+						ElevatedPreferences.RemoveKeyCodec,
+						ElevatedPreferences.PutValueCodec,
+						ElevatedFiles.FileChunkCodec,
+						ElevatedFiles.FileSizeCodec,
+						ElevatedFiles.ReadFileCodec,
+						ElevatedFiles.WriteFileCodec,
+						ElevatedFiles.CopyFileCodec,
+						ElevatedFiles.MoveFileCodec;
 }
\ No newline at end of file
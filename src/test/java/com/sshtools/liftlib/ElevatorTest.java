@@ -0,0 +1,161 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+
+import com.sshtools.liftlib.Elevator.ElevatorBuilder;
+import com.sshtools.liftlib.Elevator.ReauthorizationPolicy;
+import com.sshtools.liftlib.impl.ChildProcesses;
+
+/**
+ * Runs closures in a real helper JVM, which is not actually elevated (see
+ * <code>liftlib.unelevated</code>).
+ */
+@DisabledOnOs(org.junit.jupiter.api.condition.OS.WINDOWS)
+public class ElevatorTest {
+
+	@SuppressWarnings("serial")
+	public final static class Pid implements ElevatedClosure<Long, Long> {
+		@Override
+		public Long call(ElevatedClosure<Long, Long> proxy) throws Exception {
+			return ProcessHandle.current().pid();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public final static class Count implements ElevatedClosure<Integer, Integer> {
+		private final int count;
+
+		public Count(int count) {
+			this.count = count;
+		}
+
+		@Override
+		public Integer call(ElevatedClosure<Integer, Integer> proxy) throws Exception {
+			for (int i = 0; i < count; i++)
+				proxy.event(i);
+			return count;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public final static class Sleep implements ElevatedClosure<Integer, Long> {
+		private transient CompletableFuture<Long> started = new CompletableFuture<>();
+
+		@Override
+		public void event(Long pid) {
+			started.complete(pid);
+		}
+
+		@Override
+		public Integer call(ElevatedClosure<Integer, Long> proxy) throws Exception {
+			var process = ChildProcesses.start(new ProcessBuilder("sleep", "60"));
+			proxy.event(process.pid());
+			return ChildProcesses.waitFor(process);
+		}
+	}
+
+	private static Elevator elevator;
+
+	@BeforeAll
+	public static void setUp() {
+		System.setProperty("liftlib.unelevated", "true");
+		elevator = new ElevatorBuilder().withReauthorizationPolicy(ReauthorizationPolicy.NEVER).build();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		elevator.close();
+	}
+
+	@Test
+	public void testClosure() throws Exception {
+		assertNotEquals(ProcessHandle.current().pid(), elevator.closure(new Pid()));
+	}
+
+	@Test
+	public void testFlowControl() throws Exception {
+		var publisher = elevator.publisher(new Count(100));
+		var received = new AtomicInteger();
+		var subscription = new CompletableFuture<Flow.Subscription>();
+		var complete = new CountDownLatch(1);
+		publisher.subscribe(new Flow.Subscriber<Integer>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription.complete(s);
+				s.request(5);
+			}
+
+			@Override
+			public void onNext(Integer item) {
+				assertEquals(received.getAndIncrement(), item);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+			}
+
+			@Override
+			public void onComplete() {
+				complete.countDown();
+			}
+		});
+
+		/* With no more credit, the closure must be held up emitting its 6th event */
+		Thread.sleep(1000);
+		assertEquals(5, received.get());
+		assertFalse(publisher.result().isDone());
+
+		subscription.get(10, TimeUnit.SECONDS).request(Long.MAX_VALUE);
+		assertEquals(100, publisher.result().get(10, TimeUnit.SECONDS));
+		assertTrue(complete.await(10, TimeUnit.SECONDS));
+		assertEquals(100, received.get());
+	}
+
+	@Test
+	public void testCancelAsync() throws Exception {
+		var closure = new Sleep();
+		var future = elevator.closureAsync(closure);
+		var child = ProcessHandle.of(closure.started.get(30, TimeUnit.SECONDS));
+		assertTrue(child.isPresent());
+
+		future.cancel(true);
+		assertThrows(CancellationException.class, future::join);
+		assertTimeoutPreemptively(Duration.ofSeconds(10), () -> child.get().onExit().get());
+
+		/* And the helper is still usable */
+		assertNotEquals(ProcessHandle.current().pid(), elevator.closure(new Pid()));
+	}
+}
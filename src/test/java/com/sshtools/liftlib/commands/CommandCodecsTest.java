@@ -0,0 +1,140 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.commands;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+import com.sshtools.liftlib.Codec;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.AbstractProcessClosure;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.BasicRun;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.ConsumeBytes;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.Env;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.Output;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.OutputChunk;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.Pipe;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.PipeTo;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.SilentOutput;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.StreamOutput;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.WithConsume;
+import com.sshtools.liftlib.commands.ElevatableSystemCommands.WithResult;
+import com.sshtools.liftlib.commands.ElevatedFiles.CopyFile;
+import com.sshtools.liftlib.commands.ElevatedFiles.FileChunk;
+import com.sshtools.liftlib.commands.ElevatedFiles.FileSize;
+import com.sshtools.liftlib.commands.ElevatedFiles.MoveFile;
+import com.sshtools.liftlib.commands.ElevatedFiles.ReadFile;
+import com.sshtools.liftlib.commands.ElevatedFiles.WriteFile;
+import com.sshtools.liftlib.commands.ElevatedPreferences.GetValue;
+import com.sshtools.liftlib.commands.ElevatedPreferences.PrefType;
+import com.sshtools.liftlib.commands.ElevatedPreferences.PutValue;
+import com.sshtools.liftlib.commands.ElevatedPreferences.RemoveKey;
+import com.sshtools.liftlib.commands.SystemCommands.OutputSource;
+import com.sshtools.liftlib.commands.SystemCommands.ProcessRedirect;
+import com.sshtools.liftlib.impl.Codecs;
+
+/**
+ * Every codec LiftLib registers must decode exactly what it encoded. As most
+ * of the values have no equality of their own, this is checked by encoding
+ * the decoded value again.
+ */
+public class CommandCodecsTest {
+
+    private final static Map<Class<?>, Supplier<Object>> SAMPLES = new HashMap<>();
+
+    static {
+        SAMPLES.put(BasicRun.class, () -> process(new BasicRun(), c -> c.args = args()));
+        SAMPLES.put(WithResult.class, () -> process(new WithResult(), c -> c.args = args()));
+        SAMPLES.put(Output.class, () -> process(new Output(), c -> c.args = args()));
+        SAMPLES.put(SilentOutput.class, () -> process(new SilentOutput(), c -> c.args = args()));
+        SAMPLES.put(StreamOutput.class, () -> process(new StreamOutput(), c -> c.args = args()));
+        SAMPLES.put(Pipe.class, () -> process(new Pipe(), c -> c.args = args()));
+        SAMPLES.put(ConsumeBytes.class, () -> process(new ConsumeBytes(), c -> c.args = args()));
+        SAMPLES.put(PipeTo.class, () -> process(new PipeTo(), c -> {
+            c.args = args();
+            c.content = "line 1\nline 2\n";
+        }));
+        SAMPLES.put(WithConsume.class, () -> process(new WithConsume(), c -> {
+            c.args = args();
+            c.hasOut = true;
+            c.hasErr = false;
+        }));
+        SAMPLES.put(OutputChunk.class, () -> new OutputChunk(OutputSource.STDERR, new byte[] { 0, 1, (byte)0xff }));
+        SAMPLES.put(GetValue.class, () -> new GetValue(true, "/com/sshtools", "key", "default"));
+        SAMPLES.put(RemoveKey.class, () -> new RemoveKey(false, "/com/sshtools", "key"));
+        SAMPLES.put(PutValue.class, () -> new PutValue(false, "/com/sshtools", "key", 42, PrefType.INTEGER));
+        SAMPLES.put(FileChunk.class, () -> new FileChunk(65536, new byte[] { 1, 2, 3 }));
+        SAMPLES.put(FileSize.class, () -> new FileSize("/etc/hosts"));
+        SAMPLES.put(ReadFile.class, () -> new ReadFile("/etc/hosts", 10));
+        SAMPLES.put(WriteFile.class, () -> new WriteFile("/tmp/hosts", 20));
+        SAMPLES.put(CopyFile.class, () -> new CopyFile("/etc/hosts", "/tmp/hosts", 30, true));
+        SAMPLES.put(MoveFile.class, () -> new MoveFile("/tmp/hosts", "/tmp/hosts.old", false));
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testEveryCodecRoundTrips() throws IOException {
+        var codecs = Codecs.get();
+        var count = 0;
+        for (var codec : ServiceLoader.load(Codec.class)) {
+            var sample = SAMPLES.get(codec.type());
+            assertNotNull(sample, "No sample for " + codec.type().getName());
+            var value = sample.get();
+            var data = codecs.encode(value);
+            assertEquals(1, data[0], codec.type().getName() + " was not encoded by its codec");
+            var decoded = codecs.decode(data, null);
+            assertEquals(value.getClass(), decoded.getClass());
+            assertArrayEquals(data, codecs.encode(decoded), codec.type().getName() + " did not round trip");
+            count++;
+        }
+        assertEquals(SAMPLES.size(), count);
+    }
+
+    @Test
+    public void testProcessClosureState() throws IOException {
+        var decoded = (PipeTo) Codecs.get().decode(Codecs.get().encode(SAMPLES.get(PipeTo.class).get()), null);
+        assertArrayEquals(args(), decoded.args);
+        assertEquals("line 1\nline 2\n", decoded.content);
+        assertEquals(Map.of("LANG", "C", "EMPTY", ""), decoded.env);
+        assertEquals(ProcessRedirect.PIPE, decoded.stdin);
+        assertNull(decoded.stdout);
+        assertEquals(ProcessRedirect.DISCARD, decoded.stderr);
+        assertEquals("/tmp", decoded.dir);
+    }
+
+    private static String[] args() {
+        return new String[] { "ls", "-l", "", "a b" };
+    }
+
+    private static <C extends AbstractProcessClosure<?, ?>> C process(C closure, Consumer<C> init) {
+        closure.env = new Env(Map.of("LANG", "C", "EMPTY", ""));
+        closure.stdin = ProcessRedirect.PIPE;
+        closure.stderr = ProcessRedirect.DISCARD;
+        closure.dir = "/tmp";
+        init.accept(closure);
+        return closure;
+    }
+}
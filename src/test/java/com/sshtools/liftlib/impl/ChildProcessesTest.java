@@ -0,0 +1,152 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+@DisabledOnOs(OS.WINDOWS)
+public class ChildProcessesTest {
+
+	@Test
+	public void testDestroyScope() throws Exception {
+		try (var scope = ChildProcesses.open()) {
+			var process = ChildProcesses.start(sleep());
+			assertTrue(process.isAlive());
+			scope.destroy();
+			assertExits(process.toHandle());
+		}
+	}
+
+	@Test
+	public void testDestroyScopeDestroysDescendants() throws Exception {
+		try (var scope = ChildProcesses.open()) {
+			var process = ChildProcesses.start(new ProcessBuilder("sh", "-c", "sleep 60 & echo $!; wait"));
+			var child = ProcessHandle.of(Long.parseLong(new BufferedReader(new InputStreamReader(process.getInputStream())).readLine())).get();
+			scope.destroy();
+			assertExits(process.toHandle());
+			assertExits(child);
+		}
+	}
+
+	@Test
+	public void testStartAfterDestroy() throws Exception {
+		try (var scope = ChildProcesses.open()) {
+			scope.destroy();
+			assertExits(ChildProcesses.start(sleep()).toHandle());
+		}
+	}
+
+	@Test
+	public void testInterruptWhileWaiting() throws Exception {
+		var started = new CompletableFuture<Process>();
+		var thread = new Thread(() -> {
+			var scope = ChildProcesses.open();
+			try {
+				var process = ChildProcesses.start(sleep());
+				started.complete(process);
+				ChildProcesses.waitFor(process);
+			} catch (Exception e) {
+				started.completeExceptionally(e);
+			} finally {
+				scope.close();
+			}
+		});
+		thread.start();
+		var process = started.get(10, TimeUnit.SECONDS);
+		thread.interrupt();
+		assertExits(process.toHandle());
+		thread.join();
+	}
+
+	@Test
+	public void testUnscopedProcessesAreNotTracked() throws Exception {
+		var process = ChildProcesses.start(sleep());
+		try {
+			try (var scope = ChildProcesses.open()) {
+				scope.destroy();
+			}
+			assertFalse(process.onExit().isDone());
+			Thread.sleep(200);
+			assertTrue(process.isAlive());
+		} finally {
+			process.destroyForcibly();
+		}
+	}
+
+	@Test
+	public void testNestedScopes() throws Exception {
+		try (var outer = ChildProcesses.open()) {
+			Process inner;
+			try (var scope = ChildProcesses.open()) {
+				inner = ChildProcesses.start(sleep());
+				scope.destroy();
+			}
+			var process = ChildProcesses.start(sleep());
+			assertExits(inner.toHandle());
+			assertTrue(process.isAlive());
+			outer.destroy();
+			assertExits(process.toHandle());
+		}
+	}
+
+	@Test
+	public void testPermitsReturnedOnExit() {
+		/* More processes than can run at once, each must return its permit when it exits */
+		var count = Math.max(8, Runtime.getRuntime().availableProcessors() * 2) + 4;
+		assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+			var scope = ChildProcesses.open();
+			try {
+				for (int i = 0; i < count; i++)
+					assertEquals(0, ChildProcesses.waitFor(ChildProcesses.start(new ProcessBuilder("true"))));
+			} finally {
+				scope.close();
+			}
+		});
+	}
+
+	@Test
+	public void testFailedStart() {
+		var scope = ChildProcesses.open();
+		try {
+			assertThrows(IOException.class, () -> ChildProcesses.start(new ProcessBuilder("/does/not/exist")));
+		} finally {
+			scope.close();
+		}
+	}
+
+	private static ProcessBuilder sleep() {
+		return new ProcessBuilder("sleep", "60");
+	}
+
+	private static void assertExits(ProcessHandle handle) {
+		assertTimeoutPreemptively(Duration.ofSeconds(10), () -> handle.onExit().get());
+	}
+}
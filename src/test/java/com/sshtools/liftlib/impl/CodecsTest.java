@@ -0,0 +1,93 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class CodecsTest {
+
+	@Test
+	public void testSimpleTypes() throws IOException {
+		assertNull(roundTrip(null));
+		assertEquals("", roundTrip(""));
+		assertEquals("Hello é世😀", roundTrip("Hello é世😀"));
+		assertEquals(Integer.MIN_VALUE, roundTrip(Integer.MIN_VALUE));
+		assertEquals(Long.MAX_VALUE, roundTrip(Long.MAX_VALUE));
+		assertEquals(Boolean.TRUE, roundTrip(true));
+		assertEquals(Boolean.FALSE, roundTrip(false));
+		assertEquals(1.5f, roundTrip(1.5f));
+		assertEquals(Double.NaN, roundTrip(Double.NaN));
+	}
+
+	@Test
+	public void testStringArray() throws IOException {
+		assertArrayEquals(new String[0], (String[]) roundTrip(new String[0]));
+		assertArrayEquals(new String[] { "a", null, "" }, (String[]) roundTrip(new String[] { "a", null, "" }));
+	}
+
+	@Test
+	public void testSerializedFallback() throws IOException {
+		var list = new ArrayList<Object>(List.of("a", 1, Duration.ofSeconds(5)));
+		assertEquals(list, roundTrip(list));
+		assertEquals(Duration.ofMillis(10), Codecs.get().decode(Codecs.get().encode(Duration.ofMillis(10)), getClass().getClassLoader()));
+	}
+
+	@Test
+	public void testStrings() throws IOException {
+		var bout = new ByteArrayOutputStream();
+		var dout = new DataOutputStream(bout);
+		Codecs.writeString(dout, null);
+		Codecs.writeString(dout, "x");
+		var in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+		assertNull(Codecs.readString(in));
+		assertEquals("x", Codecs.readString(in));
+	}
+
+	@Test
+	public void testUnknownValueType() {
+		assertThrows(IOException.class, () -> Codecs.get().decode(new byte[] { 99 }, null));
+	}
+
+	@Test
+	public void testUnknownCodec() {
+		assertThrows(InvalidClassException.class, () -> Codecs.get().decode(new byte[] { 1, 0x7f, 0, 0, 0 }, null));
+	}
+
+	@Test
+	public void testTruncatedValue() {
+		assertThrows(IOException.class, () -> Codecs.get().decode(new byte[] { 5, 0, 0 }, null));
+	}
+
+	private static Object roundTrip(Object value) throws IOException {
+		var codecs = Codecs.get();
+		return codecs.decode(codecs.encode(value), null);
+	}
+}
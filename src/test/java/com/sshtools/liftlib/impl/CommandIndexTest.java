@@ -0,0 +1,67 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+@DisabledOnOs(OS.WINDOWS)
+public class CommandIndexTest {
+
+	@Test
+	public void testFindsFirstOnPath() {
+		var found = CommandIndex.get().find("sh");
+		assertTrue(found.isPresent());
+		assertTrue(found.get().isAbsolute());
+		assertEquals(scan("sh"), found);
+	}
+
+	@Test
+	public void testMissing() {
+		assertFalse(CommandIndex.get().find("liftlib-no-such-command").isPresent());
+		assertFalse(CommandIndex.get().find("liftlib-no-such-command").isPresent());
+	}
+
+	@Test
+	public void testInvalidate() {
+		var index = CommandIndex.get();
+		var found = index.find("sh");
+		index.invalidate();
+		assertEquals(found, index.find("sh"));
+	}
+
+	private static Optional<Path> scan(String command) {
+		for (var el : System.getenv("PATH").split(File.pathSeparator)) {
+			if (!el.isEmpty()) {
+				var file = Paths.get(el).toAbsolutePath().resolve(command);
+				if (Files.exists(file))
+					return Optional.of(file);
+			}
+		}
+		return Optional.empty();
+	}
+}
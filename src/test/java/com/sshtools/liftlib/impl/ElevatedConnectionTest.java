@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sshtools.liftlib.BatchResult;
+import com.sshtools.liftlib.BatchResult.Status;
+import com.sshtools.liftlib.ElevatedClosure;
+import com.sshtools.liftlib.Helper;
+import com.sshtools.liftlib.IElevator.BatchMode;
+import com.sshtools.liftlib.impl.Frames.Frame;
+import com.sshtools.liftlib.impl.Frames.Payload;
+
+/**
+ * Drives an {@link ElevatedConnection} from the helper's side of the wire.
+ */
+public class ElevatedConnectionTest {
+
+	@SuppressWarnings("serial")
+	private final static class Echo implements ElevatedClosure<String, String> {
+		@Override
+		public String call(ElevatedClosure<String, String> proxy) throws Exception {
+			return "echo";
+		}
+	}
+
+	private ServerSocketChannel server;
+	private ElevatedConnection connection;
+	private Frames helper;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		var client = SocketChannel.open(server.getLocalAddress());
+		var channel = server.accept();
+		connection = new ElevatedConnection(client, new Spans(List.of()));
+		helper = new Frames(ChannelStreams.input(channel), ChannelStreams.output(channel));
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		connection.close();
+		helper.close();
+		server.close();
+	}
+
+	@Test
+	public void testResult() throws Exception {
+		var future = connection.closureAsync(new Echo(), Runnable::run);
+		var frame = helper.read();
+		assertEquals(Helper.CMD_CLOSURE, frame.type());
+		complete(frame, out -> Codecs.get().write(out, "done"));
+		assertEquals("done", future.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testUndecodableResult() throws Exception {
+		var future = connection.closureAsync(new Echo(), Runnable::run);
+		complete(helper.read(), out -> out.writeByte(99));
+		assertFailed(IOException.class, future);
+		assertConnectionUsable();
+	}
+
+	@Test
+	public void testCodecRuntimeException() throws Exception {
+		/* A string array of negative length, which fails with a NegativeArraySizeException */
+		var future = connection.closureAsync(new Echo(), Runnable::run);
+		complete(helper.read(), out -> {
+			out.writeByte(7);
+			out.writeInt(-1);
+		});
+		assertFailed(IOException.class, future);
+		assertConnectionUsable();
+	}
+
+	@Test
+	public void testUndecodableEvent() throws Exception {
+		var future = connection.closureAsync(new Echo(), Runnable::run);
+		var id = helper.read().id();
+		helper.write(Helper.RESP_EVENT, id, out -> {
+			out.writeInt(-1);
+			out.writeInt(1);
+			out.writeByte(99);
+		});
+		assertFailed(IOException.class, future);
+
+		var frame = helper.read();
+		assertEquals(Helper.CMD_CANCEL, frame.type());
+		assertEquals(id, frame.id());
+		assertConnectionUsable();
+	}
+
+	@Test
+	public void testUndecodableBatchResult() throws Exception {
+		var future = batchAsync(3);
+		var frame = helper.read();
+		assertEquals(Helper.CMD_BATCH, frame.type());
+		helper.write(Helper.RESP_BATCH, frame.id(), out -> {
+			out.writeLong(0);
+			out.writeInt(3);
+			var data = Codecs.get().encode("a");
+			out.writeByte(Status.OK.ordinal());
+			out.writeInt(data.length);
+			out.write(data);
+			out.writeByte(Status.OK.ordinal());
+			out.writeInt(1);
+			out.writeByte(99);
+			out.writeByte(Status.SKIPPED.ordinal());
+		});
+
+		var results = future.get(10, TimeUnit.SECONDS);
+		assertEquals("a", results.get(0).get());
+		assertEquals(Status.FAILED, results.get(1).status());
+		assertInstanceOf(IOException.class, results.get(1).error().get());
+		assertEquals(Status.SKIPPED, results.get(2).status());
+		assertConnectionUsable();
+	}
+
+	@Test
+	public void testTruncatedBatch() throws Exception {
+		var future = batchAsync(2);
+		helper.write(Helper.RESP_BATCH, helper.read().id(), out -> {
+			out.writeLong(0);
+			out.writeInt(2);
+		});
+		assertFailed(IOException.class, future);
+		assertConnectionUsable();
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		var future = connection.closureAsync(new Echo(), Runnable::run);
+		var id = helper.read().id();
+		future.cancel(true);
+
+		var frame = helper.read();
+		assertEquals(Helper.CMD_CANCEL, frame.type());
+		assertEquals(id, frame.id());
+
+		/* Whatever the cancelled closure then returns is ignored */
+		complete(frame, out -> Codecs.get().write(out, "late"));
+		assertTrue(future.isCancelled());
+		assertConnectionUsable();
+	}
+
+	@Test
+	public void testConnectionLost() throws Exception {
+		var future = connection.closureAsync(new Echo(), Runnable::run);
+		helper.read();
+		helper.close();
+		assertFailed(EOFException.class, future);
+		assertThrows(EOFException.class, () -> connection.closure(new Echo()));
+	}
+
+	private void assertConnectionUsable() throws Exception {
+		var future = CompletableFuture.supplyAsync(() -> {
+			try {
+				return connection.closure(new Echo());
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		complete(helper.read(), out -> Codecs.get().write(out, "again"));
+		assertEquals("again", future.get(10, TimeUnit.SECONDS));
+	}
+
+	private CompletableFuture<List<BatchResult>> batchAsync(int size) {
+		var closures = new ArrayList<Echo>();
+		for (int i = 0; i < size; i++)
+			closures.add(new Echo());
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return connection.batch(closures, BatchMode.CONTINUE_ON_ERROR);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	private void complete(Frame frame, Payload result) throws IOException {
+		helper.write(Helper.RESP_COMPLETE, frame.id(), out -> {
+			out.writeLong(0);
+			out.writeBoolean(true);
+			result.write(out);
+		});
+	}
+
+	private static void assertFailed(Class<? extends Exception> type, CompletableFuture<?> future) throws Exception {
+		var ee = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+		assertInstanceOf(type, ee.getCause());
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.liftlib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class FramesTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		var out = new ByteArrayOutputStream();
+		var frames = new Frames(InputStream.nullInputStream(), out);
+		frames.write(3, 0x0102030405060708l, dout -> dout.write(new byte[] { 1, 2, 3 }));
+		frames.write(200, -1, null);
+
+		var in = new Frames(new ByteArrayInputStream(out.toByteArray()), new ByteArrayOutputStream());
+		var frame = in.read();
+		assertEquals(3, frame.type());
+		assertEquals(0x0102030405060708l, frame.id());
+		assertEquals(3, frame.size());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, frame.payloadBytes());
+		assertEquals(1, frame.payload().readByte());
+
+		frame = in.read();
+		assertEquals(200, frame.type());
+		assertEquals(-1, frame.id());
+		assertEquals(0, frame.size());
+
+		assertThrows(EOFException.class, in::read);
+	}
+
+	@Test
+	public void testFrameLayout() throws IOException {
+		var out = new ByteArrayOutputStream();
+		new Frames(InputStream.nullInputStream(), out).write(1, 2, dout -> dout.writeShort(3));
+		assertArrayEquals(new byte[] { 0, 0, 0, 11, 1, 0, 0, 0, 0, 0, 0, 0, 2, 0, 3 }, out.toByteArray());
+	}
+
+	@Test
+	public void testFailedEncodeWritesNothing() {
+		var out = new ByteArrayOutputStream();
+		var frames = new Frames(InputStream.nullInputStream(), out);
+		assertThrows(IOException.class, () -> frames.write(0, 1, dout -> {
+			dout.writeInt(1);
+			throw new IOException("Failed.");
+		}));
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	public void testRejectsLengthShorterThanHeader() {
+		assertThrows(IOException.class, () -> read(8, new byte[8]));
+		assertThrows(IOException.class, () -> read(-1, new byte[0]));
+	}
+
+	@Test
+	public void testRejectsLengthLongerThanMaximum() {
+		/* Must fail on the length alone, without trying to read (or allocate) the frame */
+		assertThrows(IOException.class, () -> read(Frames.MAX_FRAME_SIZE + 1, new byte[0]));
+		assertThrows(IOException.class, () -> read(Integer.MAX_VALUE, new byte[0]));
+	}
+
+	@Test
+	public void testTruncatedFrame() {
+		assertThrows(EOFException.class, () -> read(20, new byte[10]));
+	}
+
+	@Test
+	public void testFits() {
+		assertTrue(Frames.fits(0));
+		assertTrue(Frames.fits(Frames.MAX_FRAME_SIZE - 9));
+		assertFalse(Frames.fits(Frames.MAX_FRAME_SIZE - 8));
+		assertFalse(Frames.fits(Long.MAX_VALUE));
+	}
+
+	private static void read(int len, byte[] data) throws IOException {
+		var bout = new ByteArrayOutputStream();
+		var dout = new DataOutputStream(bout);
+		dout.writeInt(len);
+		dout.write(data);
+		var in = new Frames(new ByteArrayInputStream(bout.toByteArray()), new ByteArrayOutputStream());
+		in.read();
+	}
+}